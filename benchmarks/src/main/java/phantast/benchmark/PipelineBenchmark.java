@@ -0,0 +1,134 @@
+package phantast.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+import phantast.HaloCorrection;
+import phantast.LocalContrastFilter;
+import phantast.LocalContrastFilter.GaussianMethod;
+import phantast.PhantastEngine;
+import phantast.PhantastParameters;
+import phantast.PhantastResult;
+
+/**
+ * Throughput of every stage of the PHANTAST pipeline, on synthetic phase contrast images of several
+ * sizes and cell densities. Each stage is fed with the output of the previous stages, computed once
+ * during setup. Run with {@code java -jar target/benchmarks.jar -prof gc} to also get allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-Djava.awt.headless=true"})
+public class PipelineBenchmark {
+
+	@Param({"512", "2048", "8192"})
+	public int size;
+
+	@Param({"0.2", "0.5", "0.8"})
+	public double density;
+
+	private final PhantastParameters parameters = new PhantastParameters();
+
+	private PhantastEngine engine;
+	private LocalContrastFilter filter;
+	private FloatProcessor image;
+	private float[] localContrast;
+	private Img<UnsignedByteType> thresholded;
+	private Img<UnsignedByteType> cleaned;
+	private byte[] directions;
+
+	private byte[] cleanedPixels; // Input of the halo correction, see HaloInput
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		engine = new PhantastEngine(parameters);
+		filter = new LocalContrastFilter();
+		image = SyntheticImages.phaseContrast(size, density, 42);
+
+		localContrast = new LocalContrastFilter().apply((float[]) image.getPixels(), size, size, parameters.getSigma()).clone();
+		thresholded = PhantastEngine.thresholdImage(localContrast, size, size, parameters.getEpsilon());
+		cleaned = engine.removeSmallObjectsAndFillHoles(thresholded);
+		directions = new byte[size*size];
+		final Cursor<UnsignedByteType> c = Views.flatIterable(PhantastEngine.getDirectionImage(new ImagePlus("Synthetic", image))).cursor();
+		for(int i = 0; c.hasNext(); i++) directions[i] = (byte) c.next().get();
+
+		final PhantastResult result = new PhantastEngine(parameters.copy().setHaloCorrection(false)).segment(image);
+		cleanedPixels = result.getMask();
+	}
+
+	@Benchmark
+	public float[] localContrast() {
+		return filter.apply((float[]) image.getPixels(), size, size, parameters.getSigma());
+	}
+
+	/** Same as {@link #localContrast()} with the recursive Gaussian, whose cost does not depend on sigma */
+	@Benchmark
+	public float[] localContrastRecursive() {
+		return filter.apply((float[]) image.getPixels(), size, size, parameters.getSigma(), GaussianMethod.RECURSIVE);
+	}
+
+	@Benchmark
+	public Img<UnsignedByteType> thresholdImage() {
+		return PhantastEngine.thresholdImage(localContrast, size, size, parameters.getEpsilon());
+	}
+
+	@Benchmark
+	public Img<UnsignedByteType> removeSmallObjectsAndFillHoles() {
+		return engine.removeSmallObjectsAndFillHoles(thresholded);
+	}
+
+	@Benchmark
+	public Img<UnsignedByteType> getDirectionImage() {
+		return PhantastEngine.getDirectionImage(new ImagePlus("Synthetic", image));
+	}
+
+	/**
+	 * Halo correction modifies its mask, so it works on a fresh copy for every call. The copy is a state of
+	 * its own, so that only this benchmark pays for it and the allocation rates of the others are not inflated.
+	 */
+	@State(Scope.Thread)
+	public static class HaloInput {
+		byte[] mask;
+
+		@Setup(Level.Invocation)
+		public void copy(PipelineBenchmark benchmark) {
+			mask = benchmark.cleanedPixels.clone();
+		}
+	}
+
+	@Benchmark
+	public byte[] haloCorrection(HaloInput input) {
+		HaloCorrection.apply(input.mask, directions, size, size);
+		return input.mask;
+	}
+
+	@Benchmark
+	public double computeConfluency() {
+		return PhantastEngine.computeConfluency(cleaned);
+	}
+
+	@Benchmark
+	public PhantastResult segment() {
+		return engine.segment(image);
+	}
+}
@@ -0,0 +1,68 @@
+package phantast.benchmark;
+
+import java.util.Random;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Generates images that look enough like phase contrast micrographs to exercise every PHANTAST stage:
+ * a flat noisy background, cells drawn as textured ellipses, and a bright halo around each cell.
+ */
+public class SyntheticImages {
+
+	private static final float BACKGROUND = 100f;
+	private static final float BACKGROUND_NOISE = 2f;
+	private static final float CELL_TEXTURE = 25f;
+	private static final float HALO = 40f;
+
+	/**
+	 * @param size width and height of the image
+	 * @param density fraction of the image to cover with cells, cells may overlap
+	 * @param seed seed of the random generator, the same seed gives the same image
+	 */
+	public static FloatProcessor phaseContrast(int size, double density, long seed) {
+		final Random random = new Random(seed);
+		final float[] pixels = new float[size*size];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = BACKGROUND + (float) random.nextGaussian() * BACKGROUND_NOISE;
+		}
+
+		final double targetArea = density * size * size;
+		double area = 0;
+		while(area < targetArea) {
+			final double a = 12 + random.nextDouble() * 28;
+			final double b = a * (0.5 + random.nextDouble() * 0.5);
+			final double angle = random.nextDouble() * Math.PI;
+			drawCell(pixels, size, random.nextDouble() * size, random.nextDouble() * size, a, b, angle, random);
+			area += Math.PI * a * b;
+		}
+
+		return new FloatProcessor(size, size, pixels);
+	}
+
+	private static void drawCell(float[] pixels, int size, double cx, double cy, double a, double b, double angle, Random random) {
+		final double cos = Math.cos(angle);
+		final double sin = Math.sin(angle);
+		final double reach = a + 3;
+		final int x0 = Math.max(0, (int) (cx - reach));
+		final int x1 = Math.min(size - 1, (int) (cx + reach));
+		final int y0 = Math.max(0, (int) (cy - reach));
+		final int y1 = Math.min(size - 1, (int) (cy + reach));
+
+		for(int y = y0; y <= y1; y++) {
+			for(int x = x0; x <= x1; x++) {
+				final double dx = x - cx;
+				final double dy = y - cy;
+				final double u = (dx * cos + dy * sin) / a;
+				final double v = (-dx * sin + dy * cos) / b;
+				final double r = Math.sqrt(u * u + v * v);
+				final int i = y * size + x;
+				if(r <= 1) {
+					pixels[i] = BACKGROUND - 10 + (float) random.nextGaussian() * CELL_TEXTURE;
+				} else if(r <= 1 + 3 / b) {
+					pixels[i] = BACKGROUND + HALO;
+				}
+			}
+		}
+	}
+}
@@ -1,38 +1,37 @@
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.gui.ImageRoi;
 import ij.gui.Overlay;
-import java.awt.image.IndexColorModel;
 import ij.plugin.filter.PlugInFilterRunner;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 import ij.gui.GenericDialog;
 import ij.gui.DialogListener;
 import ij.WindowManager;
-import ij.io.FileInfo;
-import ij.plugin.ImageCalculator;
-import ij.plugin.filter.GaussianBlur;
-import ij.process.FloatProcessor;
 import java.awt.*;
 import ij.*;
+import phantast.FluorescenceClassifier;
 
 public class AFI_ implements PlugIn,DialogListener  {
 	protected ImagePlus image;
 
 	private double overlayOpacity;
+	private double threshold = FluorescenceClassifier.DEFAULT_THRESHOLD;
 	private boolean previewing;
 	private ImagePlus rawImage;
 	private ImagePlus UVImage;
 	private ImagePlus maskImage;
 
 	private ImagePlus resultImage;
+	private ImagePlus resultSource; // Raw image shown in resultImage
+	private FluorescenceClassifier classifier = new FluorescenceClassifier(); // Keeps the blurred fluorescence between previews
 
 
 	/**
 	 * As the class implements DialogListener, this method is called whenever a setting is changed
 	 */
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {    
-	        rawImage = (WindowManager.getImage(gd.getNextChoiceIndex() + 1)).duplicate();
+	        // The images are only read, no need to duplicate them on every change
+	        rawImage = WindowManager.getImage(gd.getNextChoiceIndex() + 1);
 	        int maskChoice = gd.getNextChoiceIndex();
 
 	        if(maskChoice == 0) {
@@ -40,11 +39,15 @@ public class AFI_ implements PlugIn,DialogListener  {
 	        } 
 	        else
 	        {
-        		maskImage = (WindowManager.getImage(maskChoice).duplicate());
+        		maskImage = WindowManager.getImage(maskChoice);
 	        }
-        	UVImage = (WindowManager.getImage(gd.getNextChoiceIndex() + 1)).duplicate();  
+        	UVImage = WindowManager.getImage(gd.getNextChoiceIndex() + 1);  
+        	threshold = gd.getNextNumber();
         	overlayOpacity = gd.getNextNumber();
+        	final boolean wasPreviewing = previewing;
         	previewing = gd.getNextBoolean();
+        	// The fluorescence image may have been edited while the preview was off
+        	if(previewing && !wasPreviewing) classifier.clear();
 
         	if(previewing) run("");
         		
@@ -94,6 +97,7 @@ public class AFI_ implements PlugIn,DialogListener  {
 	        gd.addChoice("Raw image", titles, titles[index1]);
 	        gd.addChoice("Cells segmentation mask", roisAndMasks, roisAndMasks[indexMask]);
 	        gd.addChoice("Fluorescence image", titles, titles[index2]);
+		gd.addNumericField("Fluorescence threshold", threshold, 1);
 		gd.addSlider("Overlay opacity",0,1,0.6);
 		gd.addCheckbox("Preview", false);
         	gd.addDialogListener(this);
@@ -107,32 +111,6 @@ public class AFI_ implements PlugIn,DialogListener  {
 	        }
 	}
 
-	FileInfo getLUTvalues(int color)
-	{
-		FileInfo fi = new FileInfo();
-
-		fi.reds = new byte[256]; 
-		fi.greens = new byte[256]; 
-		fi.blues = new byte[256];
-		
-		for (int i=0; i<256; i++) {
-		    if ((color&4)!=0)
-		        fi.reds[i] = (byte)i;
-		    if ((color&2)!=0)
-		        fi.greens[i] = (byte)i;
-		    if ((color&1)!=0)
-		        fi.blues[i] = (byte)i;
-		    if(color==0)
-		    {
-		    	fi.reds[i] = (byte)0;
-		    	fi.greens[i] = (byte)0;
-		    	fi.blues[i] = (byte)0;
-		    }
-		}
-
-		return fi;
-	}
-
 	public void run(String arg) {
 		boolean dialogState = false;
 		if(!previewing) 
@@ -149,83 +127,15 @@ public class AFI_ implements PlugIn,DialogListener  {
 		{
 			resultImage = rawImage.duplicate();
 			resultImage.show();
-		} else // If result window already up we refresh it
+		} else if(resultSource != rawImage) // If result window already up we refresh it
 		{
-			resultImage.setProcessor(rawImage.getProcessor());
+			resultImage.setProcessor(rawImage.getProcessor().duplicate());
 		}
+		resultSource = rawImage;
 
-		resultImage.setOverlay(null);
-		
-		FloatProcessor green = UVImage.getProcessor().toFloat(1, null);
-		
-		ImagePlus greenIP = new ImagePlus("Fluorescent image",green);
-
-		GaussianBlur gb = new GaussianBlur();
-		gb.blurGaussian(greenIP.getProcessor(),2,2,0.02);
-
-		ImagePlus greenMask = greenIP.duplicate();
-		greenMask.getProcessor().setThreshold(24, 24, ImageProcessor.NO_LUT_UPDATE);
-		IJ.run(greenMask, "Convert to Mask", "");
-
-		//greenMask.show();
-		//LCThresholdedIP.show();
-		ImageCalculator ic = new ImageCalculator();
-   		ImagePlus positiveMask = ic.run("AND create", maskImage, greenMask);
-
-		ImagePlus negativeMask = ic.run("OR create", maskImage, greenMask);
-
-		ImagePlus backgroundMask = maskImage.duplicate();
-		backgroundMask.getProcessor().invert();
-
-		// Generate the LUT
-		// Stolen from / src / main / java / ij / plugin / LutLoader.java
-		// Red = 4, green = 2, blue = 1, black = 0;
-		// Dumb object just to get LUT values
-		FileInfo fi = new FileInfo();
-
-		fi=getLUTvalues(2);
-		IndexColorModel cm = new IndexColorModel(8, 256, fi.reds, fi.greens, fi.blues);
-		positiveMask.getProcessor().setColorModel(cm);
-
-		fi=getLUTvalues(4);
-		cm = new IndexColorModel(8, 256, fi.reds, fi.greens, fi.blues);
-		negativeMask.getProcessor().setColorModel(cm);
-
- 		//fi=getLUTvalues(0);
- 		fi.reds = new byte[256]; 
-		fi.greens = new byte[256]; 
-		fi.blues = new byte[256];
-
-		fi.reds[0] = (byte)0;
-		fi.blues[0] = (byte)0;
-		fi.greens[0] = (byte)0;
-
-		fi.reds[255] = (byte)5;
-		fi.blues[255] = (byte)5;
-		fi.greens[255] = (byte)5;
-		cm = new IndexColorModel(8, 256, fi.reds, fi.greens, fi.blues);
-		backgroundMask.getProcessor().setColorModel(cm);               
-                
-		// Userful ROI source http://fiji.sc/cgi-bin/gitweb.cgi?p=ImageJA.git;a=blob;f=src/main/java/ij/plugin/OverlayCommands.java;h=2e560ced45035d86ef7a06a0b2cb154164a758bc;hb=refs/heads/master
-		Overlay overlayList = resultImage.getOverlay();
-		if (overlayList==null) overlayList = new Overlay();
-		
-		ImageRoi roi = new ImageRoi(0, 0, negativeMask.getProcessor());
-		roi.setZeroTransparent(true);
-		roi.setOpacity(overlayOpacity);
-   		overlayList.add(roi);
-
-   		roi = new ImageRoi(0, 0, positiveMask.getProcessor());
-		roi.setZeroTransparent(true);
-		roi.setOpacity(overlayOpacity);
-   		overlayList.add(roi);
-
-   		roi = new ImageRoi(0, 0, backgroundMask.getProcessor());
-		roi.setZeroTransparent(true);
-		roi.setOpacity(overlayOpacity);
-   		overlayList.add(roi);
-   		
-            	resultImage.setOverlay(overlayList);
-
+		// Positive cells, negative cells and background are classified in one pass, into a single overlay
+		Overlay overlayList = new Overlay();
+		overlayList.add(classifier.classifyAsRoi(maskImage.getProcessor(), UVImage.getProcessor(), threshold, overlayOpacity));
+		resultImage.setOverlay(overlayList);
 	}
 }
\ No newline at end of file
@@ -55,42 +55,72 @@ POSSIBILITY OF SUCH DAMAGE.
 import ij.ImagePlus;
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageStack;
 
 import java.awt.*;
 
 import ij.gui.GenericDialog;
 import ij.gui.Overlay;
+import ij.io.RoiEncoder;
+import ij.io.SaveDialog;
+import ij.gui.Plot;
+import ij.gui.PlotWindow;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.PlugInFilterRunner;
 import ij.plugin.frame.RoiManager;
 import ij.gui.DialogListener;
 import ij.Prefs;
 import ij.process.ImageProcessor;
-import ij.process.BinaryProcessor;
-import ij.process.ByteProcessor;
 import net.imglib2.Cursor;
 import ij.gui.Roi;
 import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.type.logic.BitType;
-import net.imglib2.algorithm.gauss.Gauss;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.Type;
+import net.imglib2.view.Views;
+import phantast.BufferPool;
+import phantast.ColonyMeasurements;
+import phantast.ContourTracer;
+import phantast.ContrastHistogram;
+import phantast.LocalContrastFilter;
+import phantast.LocalContrastFilter.GaussianMethod;
+import phantast.PhantastEngine;
+import phantast.PixelKernels;
+import phantast.PhantastParameters;
+import phantast.PhantastResult;
+import phantast.MaskSink;
+import phantast.HyperstackPlanes;
+import phantast.PackedMaskStack;
+import phantast.PreviewCache;
+import phantast.SlicePrefetcher;
+import phantast.StageTimer;
+import phantast.StageTimer.Stage;
+import phantast.TiffMaskWriter;
+import phantast.TimeLapseSegmenter;
 
 import java.util.Iterator;	
 
-import net.imglib2.RandomAccess;
-import ij.plugin.filter.ParticleAnalyzer;
 import ij.measure.ResultsTable;
-import ij.measure.Measurements;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.util.*; 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 //import net.imglib2.script.math.fn.BinaryOperation;
 
 
@@ -102,12 +132,15 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 	protected ImagePlus inputImage;
 	
 	private ImagePlus maskImage;
+	private File maskFile; // Masks of a stack streamed to disk, opened as a virtual stack at the end
 	
 	private double sigma = 1.2;
 	private double epsilon = 0.03;
 	private boolean doHaloCorrection = true;;
 	private boolean previewing = false;
 	private boolean computeConfluency = false;
+	private boolean measureColonies = false; // Area, perimeter, centroid and bounding box of every colony
+	private boolean plotEpsilonCurve = false; // Coverage versus epsilon of the previewed slice
 	private int slider=1;
 	private String prefix = "phantast.plugin.";
 	
@@ -115,40 +148,29 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 	private int pass; // Current pass
 	private boolean outputSelection;
 	private boolean outputMask;
+	private boolean processStack; // All slices requested, handled by runStack()
+	private int nThreads = Prefs.getThreads();
+	private int tileSize = 0; // Local filters are computed tile by tile when > 0
+	private GaussianMethod gaussianMethod = GaussianMethod.EXACT;
+	private static final String[] gaussianLabels = {"Exact", "Recursive", "Auto (recursive from sigma "+LocalContrastFilter.RECURSIVE_SIGMA_CUTOFF+")"}; // In the order of GaussianMethod
+	private boolean timeLapse = false; // Stacks: reuse the tiles that did not change since the previous slice
+	private double changeTolerance = 0;
+	private int maskStorage = 0; // Masks of stacks: 0 bit-packed in memory, 1 streamed to a TIFF file
+	private static final String[] maskStorageLabels = {"Bit-packed in memory", "Compressed TIFF file"};
+	private int selectionStorage = 0; // Selections of stacks: 0 ROI Manager, 1 ROI zip file
+	private static final String[] selectionStorageLabels = {"ROI Manager", "ROI zip file"};
+	private List<Roi> stackRois = new ArrayList<Roi>(); // Selections of a stack, in slice order, added to the ROI Manager at FINAL_PROCESSING
+	private int prefetchDepth = 2*Prefs.getThreads(); // Slices read ahead when processing stacks
+	private int phaseChannel = 0; // Hyperstacks: channel segmented by runStack(), from 1, 0 for all channels
+	private PlotWindow epsilonPlot;
+	private PreviewCache previewCache = new PreviewCache(4); // Local contrast and direction images of the previewed slices
+	private List<ResultRow> pendingRows = new ArrayList<ResultRow>(); // Published to the Results table at FINAL_PROCESSING
+	private StageTimer stageTimer = StageTimer.DISABLED; // Enabled by the "timing" preference, reported at FINAL_PROCESSING
+	private long bufferPoolCapacity = BufferPool.DEFAULT_CAPACITY; // Scratch arrays kept by each thread between slices of a stack, from the "buffer.pool" preference in MB
 	
 	
 	int flags = DOES_8G+DOES_16+DOES_32+FINAL_PROCESSING; // Add possibility to work on 8 and 16-bit images, we do the conversion ourselves
 	
-	int[][] projectionCones = new int[][] 
-	{{1, 2, 8},
-	 {2, 1, 3},
-	 {3, 2, 4},
-	 {4, 3, 5},
-	 {5, 4, 6},
-	 {6, 5, 7},
-	 {7, 6, 8},
-	 {8, 1, 7}};
-
-	 int[][] directionOffsets2= new int[][]
-	 {{0,1},    //EAST 1    	
-         {-1,1},   //NORTH EAST 2 
-         {-1,0},   //NORTH 3
-         {-1,-1},  //NORTH WEST 4
-         {0,-1},   //WEST 5
-         {1,-1},   //SOUTH WEST 6 
-         {1,0},    //SOUTH 7
-         {1,1}};   //SOUTH EAST 8
-
-         int[][] directionOffsets= new int[][]
-	 {{1,0},    //EAST 1    	
-         {1,-1},   //NORTH EAST 2 
-         {0,-1},   //NORTH 3
-         {-1,-1},  //NORTH WEST 4
-         {-1,0},   //WEST 5
-         {-1,1},   //SOUTH WEST 6 
-         {0,1},    //SOUTH 7
-         {1,1}};   //SOUTH EAST 8
-
 		private Overlay ov;
 
 	/**
@@ -159,17 +181,23 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		//IJ.run("PHANTAST ", "sigma=1.20 epsilon=0.03 output=[Binary mask]");
 		// does not handle RGB, since the wrapped type is ARGBType (not a RealType)	
 		if(arg.equals("final")) {
-			if (ov.size() > 1) {
-				// If we asked for the output selection, add it to the ROI manager
-				IJ.run("To ROI Manager", "");
+			if (!stackRois.isEmpty()) {
+				// If we asked for the output selection of a stack, add it to the ROI manager in one go
+				addToRoiManager(imp, stackRois);
+				stackRois.clear();
 			} else if (ov.size()==1){
 				imp.setRoi(ov.get(0));
 			}
 			
 			// If we ask for the mask, we should output the ImagePlus
 			if(outputMask) {
-				maskImage.show();
+				if(maskFile != null) IJ.run("TIFF Virtual Stack...", "open=["+maskFile.getPath()+"]");
+				else if(maskImage != null) maskImage.show();
 			}
+			
+			publishResults();
+			reportTiming();
+			previewCache.clear();
 			imp.setOverlay(null);
 		}
 		if (imp == null) {
@@ -183,6 +211,10 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		// Read from the stored preferences. Avoids tedious work of remembering the last settings.
 		readSettings();
 		
+		// Stage timing is only switched on from the preferences, e.g. call("ij.Prefs.set", "phantast.plugin.timing", "true")
+		stageTimer = Prefs.get(prefix+"timing", false) ? new StageTimer() : StageTimer.DISABLED;
+		bufferPoolCapacity = Math.max(0, (long) Prefs.get(prefix+"buffer.pool", BufferPool.DEFAULT_CAPACITY >> 20)) << 20;
+		
 		// Create an overlay to hold the results
 		ov = new Overlay();
 		
@@ -197,8 +229,23 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		epsilon 		 = Prefs.get(prefix+"epsilon", epsilon);
 		doHaloCorrection = Prefs.get(prefix+"do.halo", doHaloCorrection);
 		computeConfluency= Prefs.get(prefix+"do.confluency", computeConfluency);
+		measureColonies	 = Prefs.get(prefix+"do.colonies", measureColonies);
+		plotEpsilonCurve = Prefs.get(prefix+"do.epsilon.curve", plotEpsilonCurve);
 		outputSelection	 = Prefs.get(prefix+"do.selection", outputSelection);
 		outputMask		 = Prefs.get(prefix+"do.mask", outputMask);		
+		nThreads		 = (int) Prefs.get(prefix+"threads", nThreads);
+		tileSize		 = (int) Prefs.get(prefix+"tile.size", tileSize);
+		timeLapse		 = Prefs.get(prefix+"time.lapse", timeLapse);
+		changeTolerance	 = Prefs.get(prefix+"time.lapse.tolerance", changeTolerance);
+		prefetchDepth	 = (int) Prefs.get(prefix+"prefetch", prefetchDepth);
+		maskStorage		 = Math.max(0, Math.min(1, (int) Prefs.get(prefix+"mask.storage", maskStorage)));
+		selectionStorage = Math.max(0, Math.min(1, (int) Prefs.get(prefix+"selection.storage", selectionStorage)));
+		phaseChannel	 = Math.max(0, (int) Prefs.get(prefix+"channel", phaseChannel));
+		try {
+			gaussianMethod = GaussianMethod.valueOf(Prefs.get(prefix+"gaussian", gaussianMethod.name()));
+		} catch(IllegalArgumentException e) {
+			gaussianMethod = GaussianMethod.EXACT;
+		}
 	}
 	
 	/**
@@ -210,8 +257,19 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		Prefs.set(prefix+"epsilon", epsilon);
 		Prefs.set(prefix+"do.halo", doHaloCorrection);
 		Prefs.set(prefix+"do.confluency", computeConfluency);
+		Prefs.set(prefix+"do.colonies", measureColonies);
+		Prefs.set(prefix+"do.epsilon.curve", plotEpsilonCurve);
 		Prefs.set(prefix+"do.selection", outputSelection);
 		Prefs.set(prefix+"do.mask", outputMask);					
+		Prefs.set(prefix+"threads", nThreads);
+		Prefs.set(prefix+"tile.size", tileSize);
+		Prefs.set(prefix+"gaussian", gaussianMethod.name());
+		Prefs.set(prefix+"time.lapse", timeLapse);
+		Prefs.set(prefix+"time.lapse.tolerance", changeTolerance);
+		Prefs.set(prefix+"prefetch", prefetchDepth);
+		Prefs.set(prefix+"mask.storage", maskStorage);
+		Prefs.set(prefix+"selection.storage", selectionStorage);
+		Prefs.set(prefix+"channel", phaseChannel);
 	}
 
 	// Used to set number of calls(progress bar)
@@ -226,12 +284,23 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {   
 		sigma   		  = (double)gd.getNextNumber();
 		epsilon 		  = (double)gd.getNextNumber();	
+		tileSize		  = Math.max(0, (int) gd.getNextNumber());
+		gaussianMethod    = GaussianMethod.values()[gd.getNextChoiceIndex()];
 		doHaloCorrection  = gd.getNextBoolean();
 		computeConfluency = gd.getNextBoolean();
+		measureColonies   = gd.getNextBoolean();
+		plotEpsilonCurve  = gd.getNextBoolean();
 		outputSelection   = gd.getNextBoolean();
 		outputMask        = gd.getNextBoolean();
 	    if(inputImage.getStackSize() > 1) {
 	    	slider = (int) gd.getNextNumber();
+	    	nThreads = Math.max(1, (int) gd.getNextNumber());
+	    	prefetchDepth = Math.max(1, (int) gd.getNextNumber());
+	    	changeTolerance = Math.max(0, gd.getNextNumber());
+	    	timeLapse = gd.getNextBoolean();
+	    	maskStorage = gd.getNextChoiceIndex();
+	    	selectionStorage = gd.getNextChoiceIndex();
+	    	if(inputImage.getNChannels() > 1) phaseChannel = gd.getNextChoiceIndex();
 	    }
 		previewing        = gd.getPreviewCheckbox().getState();       
 		   
@@ -250,17 +319,35 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		gd.addMessage("Local contrast thresholding",new Font("",Font.ITALIC,12));
 		gd.addNumericField("Sigma", sigma, 2);
 		gd.addNumericField("Epsilon", epsilon, 2);
+		gd.addChoice("Gaussian", gaussianLabels, gaussianLabels[gaussianMethod.ordinal()]);
 		gd.addMessage("Halo correction",new Font("",Font.ITALIC,12));
 		gd.addCheckbox("Do halo correction",doHaloCorrection);
+		gd.addMessage("Large images",new Font("",Font.ITALIC,12));
+		gd.addNumericField("Tile size (0 = whole image)", tileSize, 0, 6, "pixels");
 		gd.addMessage("OUTPUT OPTIONS",new Font("",Font.BOLD,12));
 		gd.addMessage("Measurements",new Font("",Font.ITALIC,12));
 		gd.addCheckbox("Compute confluency", computeConfluency);
+		gd.addCheckbox("Measure colonies", measureColonies);
+		gd.addCheckbox("Plot coverage versus epsilon (preview)", plotEpsilonCurve);
 		gd.addMessage("Image output",new Font("",Font.ITALIC,12));
 		gd.addCheckbox("Selection overlay on original image", outputSelection);
 		gd.addCheckbox("New mask image", outputMask);
 		gd.addMessage("");
 		if(imp.getStackSize() >1) {
 			gd.addSlider("Preview Slice", 0, imp.getStackSize(), 1);
+			gd.addNumericField("Threads (stacks)", nThreads, 0);
+			gd.addNumericField("Slices read ahead", prefetchDepth, 0);
+			gd.addCheckbox("Time-lapse: reuse unchanged tiles", timeLapse);
+			gd.addNumericField("Change tolerance", changeTolerance, 2, 6, "grey levels");
+			gd.addChoice("Mask stack", maskStorageLabels, maskStorageLabels[maskStorage]);
+			gd.addChoice("Selections of stack", selectionStorageLabels, selectionStorageLabels[selectionStorage]);
+			if(imp.getNChannels() > 1) {
+				// Only the planes of this channel are segmented, the other channels being fluorescence
+				String[] channelLabels = new String[imp.getNChannels()+1];
+				channelLabels[0] = "All channels";
+				for(int c = 1; c < channelLabels.length; c++) channelLabels[c] = ""+c;
+				gd.addChoice("Phase contrast channel", channelLabels, channelLabels[Math.min(phaseChannel, imp.getNChannels())]);
+			}
 		}
 		gd.addPreviewCheckbox(pfr);
         gd.addDialogListener(this);
@@ -274,13 +361,31 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 	    	return DONE;
 	    }else{
 			flags = IJ.setupDialog(imp, flags); //ask whether to process all slices of stack (if a stack)
+			
+			// We process the stack ourselves, so that slices can run in parallel (see runStack)
+			processStack = (flags & DOES_STACKS) != 0;
+			flags &= ~DOES_STACKS;
 
 	    	sigma = (double)gd.getNextNumber();
 			epsilon = (double)gd.getNextNumber();	
+			tileSize = Math.max(0, (int) gd.getNextNumber());
+			gaussianMethod = GaussianMethod.values()[gd.getNextChoiceIndex()];
 			doHaloCorrection = gd.getNextBoolean();
 			computeConfluency = gd.getNextBoolean();
+			measureColonies = gd.getNextBoolean();
+			plotEpsilonCurve = gd.getNextBoolean();
 			outputSelection = gd.getNextBoolean();
 			outputMask = gd.getNextBoolean();
+		    if(imp.getStackSize() > 1) {
+		    	slider = (int) gd.getNextNumber();
+		    	nThreads = Math.max(1, (int) gd.getNextNumber());
+		    	prefetchDepth = Math.max(1, (int) gd.getNextNumber());
+		    	changeTolerance = Math.max(0, gd.getNextNumber());
+		    	timeLapse = gd.getNextBoolean();
+		    	maskStorage = gd.getNextChoiceIndex();
+		    	selectionStorage = gd.getNextChoiceIndex();
+		    	if(imp.getNChannels() > 1) phaseChannel = gd.getNextChoiceIndex();
+		    }
 		    previewing = false; // This avoids issues with the checkbox still being selected... 
 		    saveSettings();
 	    	return flags;
@@ -295,20 +400,26 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 	@Override
 	public void run(ImageProcessor ip) {
 		
+		// When all slices were requested, the stack is processed in one go by our own thread pool
+		if(processStack && !previewing) {
+			runStack();
+			return;
+		}
+		
 		// This should do the work on the given ImageProcessor directly, because when you convert it to imagePlus, everything gets overwritten when working with stacks.
-		// if it's a stack, the PlugInFilter should work to assemble an image in the end
-		int slice = slider; //inputImage.getSlice();
-		inputImage.setSlice(slice);
-		if(!previewing || nPasses > 1) {
+		int slice = slider;
+		if(previewing) {
+			inputImage.setSlice(slice);
+		} else {
 			pass++;
-			slice = pass;
+			slice = inputImage.getCurrentSlice();
 		}
 		
 		String imageTitle;
 		
-		// Decide on the name of the image based on the number of passes (meaning, is it a stack)
+		// Decide on the name of the image based on the number of slices (meaning, is it a stack)
 		
-		if(inputImage.getStack().getSize() >1 && nPasses==1) {
+		if(inputImage.getStack().getSize() >1) {
 			imageTitle = inputImage.getStack().getSliceLabel(slice);
 			
 			if(imageTitle == null) { imageTitle = inputImage.getTitle()+" Slice "+slice; } // Avoid having "null" as a name in case there is no slice label
@@ -316,38 +427,26 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		} else {
 			imageTitle = inputImage.getTitle();
 		}
-		ImagePlus image = new ImagePlus(imageTitle, ip.convertToFloat());
-
-		// Convert the image to imglib2 Img format
-		Img<T> img = ImageJFunctions.wrap(image);
-
-		// Apply local contrast filter
-		final Img<T> localContrast = getLocalContrastImage(img, sigma);
-
-		// Threshold the resulting image
-		Img<UnsignedByteType> LCThresholded = thresholdImage(localContrast,epsilon);
-		LCThresholded = removeSmallObjectsAndFillHoles(LCThresholded);
-
-		if(doHaloCorrection) haloCorrection(LCThresholded,image);
-
-
-		ImagePlus LCThresholdedIP = ImageJFunctions.wrap(LCThresholded,"ResultImage");
-
 		
-		// Create the selection
-		IJ.run(LCThresholdedIP,"Convert to Mask", "method=Li background=Dark");
-		IJ.runPlugIn(LCThresholdedIP,"ij.plugin.filter.ThresholdToSelection", "");
-		Roi resultRoi = LCThresholdedIP.getRoi();
-		resultRoi.setPosition(slice);
-		resultRoi.setName("Slice "+IJ.pad(slice,3));
+		// While previewing, only the stages depending on the changed parameters are recomputed
+		PhantastEngine engine = new PhantastEngine(getParameters());
+		if(!previewing) engine.setStageTimer(stageTimer);
+		SliceResult result = previewing
+				? toSliceResult(previewCache.segment(ip, slice, engine), slice)
+				: processSlice(ip, slice, engine);
+		
+		if(previewing && plotEpsilonCurve) {
+			plotEpsilonCurve(previewCache.getLocalContrast(ip, slice, engine), slice);
+		}
+		Roi resultRoi = result.roi;
 		
 		// Prepare outputs
+		StageTimer.Split split = previewing ? null : stageTimer.start();
 				
 		if(outputMask) {
 			// This is the output mask for the current slice so we should save it somewhere and display it later
 			// for a preview, we could show the current one as an overlay, and avoid having images.
-			// The issue is that when the preview
-			if(previewing) {
+			if(previewing && resultRoi != null) {
 				inputImage.setOverlay(null);
 				Overlay ov = new Overlay();
 				resultRoi.setFillColor(new Color(255,255,255));
@@ -355,398 +454,497 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 				inputImage.setOverlay(ov);
 			}
 
-			if(nPasses > 1) {
-				if(maskImage == null || maskImage.getStackSize() != nPasses) {
-					maskImage = inputImage.createHyperStack(imageTitle+"- Output Mask", 1, nPasses, 1, 8);
-					maskImage.setTitle(imageTitle+"- Output Mask");
-				}
-				maskImage.getStack().setProcessor(LCThresholdedIP.getProcessor().duplicate(), slice);
-			} else {
-				maskImage = new ImagePlus(imageTitle+"- Output Mask", LCThresholdedIP.duplicate().getProcessor());
-			}
+			maskImage = new ImagePlus(imageTitle+"- Output Mask", result.mask);
  		}
 		
 		if(outputSelection)
 		{
-			if(previewing || slice==1) {// Do it as an Overlay
-				inputImage.setOverlay(null);
-				ov = new Overlay();
-			}
-			
-			ov.add(resultRoi);
+			// Do it as an Overlay
+			inputImage.setOverlay(null);
+			ov = new Overlay();
+			if(resultRoi != null) ov.add(resultRoi);
 			inputImage.setOverlay(ov);
 			inputImage.show();
 		}
 		
-		if(!previewing || nPasses > 1) {
-			if(computeConfluency)
-			{
-				ResultsTable rt = ResultsTable.getResultsTable();
-
-				rt.incrementCounter();
-				rt.addLabel("Image Name", imageTitle);
-				if(inputImage.getImageStackSize() > 1) rt.addValue("Slice", slice);
-				rt.addValue("Confluency",computeConfluency(LCThresholded));
-				
-				rt.show("Results");
-			}
+		// The Results table is only refreshed once all slices are done, see publishResults()
+		if(!previewing && (computeConfluency || measureColonies)) {
+			pendingRows.add(new ResultRow(imageTitle, slice, getPosition(slice), result.confluency, result.colonies));
+		}
+		if(!previewing) {
+			stageTimer.stop(split, Stage.OUTPUT);
+			stageTimer.endSlice(slice);
 		}
 
 		showProgress();
 
 	}
 
-	// Let IJ know about our progress
-	void showProgress()
-	{
-		double percent = (double)pass/nPasses;
-        	IJ.showProgress(percent);
+	/**
+	 * Plots the thresholded coverage of the slice for a range of epsilons, marking the current one.
+	 * The curve comes from the histogram of the local contrast, so it is the coverage before the
+	 * cleaning and halo correction stages, see {@link ContrastHistogram}.
+	 */
+	private void plotEpsilonCurve(float[] localContrast, int slice) {
+		ContrastHistogram histogram = new ContrastHistogram(localContrast);
+		
+		Plot plot = new Plot("Coverage versus epsilon", "Epsilon", "Coverage");
+		plot.setLimits(0, ContrastHistogram.DEFAULT_MAX_EPSILON, 0, 1);
+		plot.addPoints(histogram.epsilons(), histogram.coverages(), Plot.LINE);
+		plot.setColor(Color.red);
+		plot.drawLine(epsilon, 0, epsilon, 1);
+		plot.addLabel(0.6, 0.1, "Slice "+slice+", epsilon "+IJ.d2s(epsilon, 3)+": "+IJ.d2s(histogram.coverage(epsilon), 3));
+		
+		// Reuse the window of the previous preview
+		if(epsilonPlot != null && epsilonPlot.isVisible()) epsilonPlot.drawPlot(plot);
+		else epsilonPlot = plot.show();
 	}
 
- 	/**
- 	 * Correct halo artifacts
- 	 */
-	void haloCorrection(Img<UnsignedByteType> imgToShrink, ImagePlus image)
-	{
-		Img< UnsignedByteType> LCThresholdedOutline = getOutlineImage(imgToShrink,false);
-
-		//ImageJFunctions.show(LCThresholded);
-
-		// Store the positions of outline pixels
-		ArrayList<int[]> outlinePixels = getOutlinePixels(LCThresholdedOutline);
-
-		// Get the direction image
-		Img< UnsignedByteType > directionImage = getDirectionImage(image);
-		//ImageJFunctions.show(directionImage,"Gradient Image");
+	/**
+	 * Processes every slice of the input stack on a pool of {@link #nThreads} threads.
+	 * Slices are read ahead by a {@link SlicePrefetcher}, with at most {@link #prefetchDepth} slices
+	 * waiting in memory. Each slice only touches its own {@link SliceResult}, the mask stack, the
+	 * selections and the Results rows are assembled in slice order once all slices are done.
+	 * Of a hyperstack, only the planes of the {@link #phaseChannel} are processed, see {@link HyperstackPlanes}.
+	 */
+	private void runStack() {
+		final ImageStack stack = inputImage.getStack();
+		final HyperstackPlanes planes = HyperstackPlanes.of(inputImage, phaseChannel);
+		final int[] stackIndices = planes.getStackIndices();
+		final int nPlanes = stackIndices.length;
+		final SliceResult[] results = new SliceResult[nPlanes];
+		final AtomicInteger done = new AtomicInteger();
 		
-		final RandomAccess< UnsignedByteType > r = directionImage.randomAccess();
-		int[] currentPosition = new int[2];
-
-		long[] dimDirectionImage = new long[2];
-		directionImage.dimensions(dimDirectionImage);
-
-		// Create an instance of an image factory
-		ImgFactory< BitType > imgFactoryBit = new ArrayImgFactory< BitType >();
+		// Each worker thread keeps its own local contrast buffers within the engine
+		final PhantastEngine engine = new PhantastEngine(getParameters());
+		engine.setStageTimer(stageTimer);
 		
-		// Create an Img with the same dimension as the input image
-		final Img< BitType > consideredAsStartingPoint = imgFactoryBit.create(dimDirectionImage, new BitType() );
-
-		boolean go = true;
-		final RandomAccess< UnsignedByteType > rBinaryImage = imgToShrink.randomAccess();
-
-		ArrayList<int[]> pixelsToProcess = new ArrayList<int[]>(outlinePixels);
-		int count = 0;
-		while(go)
-		{
-			++count;
-			ArrayList<int[]> toAddToQueue = new ArrayList<int[]>();
-			ArrayList<int[]> toBeRemoved = new ArrayList<int[]>();
-			
-			for(int i=0;i<pixelsToProcess.size();i++)
-			{
-					
-				boolean validPath = false;
-	
-				// Get current position index
-				currentPosition = pixelsToProcess.get(i);
-	
-				r.setPosition( (int)currentPosition[0], 0 );
-	            		r.setPosition( (int)currentPosition[1], 1 );
-	
-	            		final UnsignedByteType currentDirection = r.get();
-	
-				int[] currentDirectionCone = projectionCones[(int)currentDirection.getInteger()];
-	
-				//IJ.log("" + currentPosition[0]);
-	
-				final RandomAccess< BitType > rStartPoint = consideredAsStartingPoint.randomAccess();
-				rStartPoint.setPosition( (int)currentPosition[0], 0 );
-	            		rStartPoint.setPosition( (int)currentPosition[1], 1 );
-				int startFlag = (int) rStartPoint.get().getInteger();
-				if(startFlag==0)
-	        		{
-					// Need to add 'consideredStartingPoint' stuff
-					if((currentPosition[0] >0) & (currentPosition[1] >0) & (currentPosition[0] < dimDirectionImage[0]-1) & (currentPosition[1] < dimDirectionImage[1]-1))
-					{
-						// Everything is an object apparently!
-						// Set this position as already visisted
-						final BitType t = rStartPoint.get();
-	            				t.setOne();  
-	
-	            				for(int k=0;k<3;k++) {
-							int[] directionOffset = directionOffsets[currentDirectionCone[k]-1];
-							int[] nextPosition = new int[2];
-	
-							nextPosition[0] = currentPosition[0] + directionOffset[0];
-							nextPosition[1] = currentPosition[1] + directionOffset[1];					
-							
-							rBinaryImage.setPosition((int)nextPosition[0],0);
-							rBinaryImage.setPosition((int)nextPosition[1],1);
-							//IJ.log("" + (int)nextPosition[0]);
-							//IJ.log("" + (int)nextPosition[1]);
-							if(rBinaryImage.get().getInteger()==255)
-							{		
-					                        if((nextPosition[0] >=1) & (nextPosition[1] >=1) & (nextPosition[0] <= dimDirectionImage[0]) & (nextPosition[1] <= dimDirectionImage[1]))
-					                        {
-					                        	validPath = true;
-					                        	toAddToQueue.add(nextPosition);
-					                        }
-							}
-	            				}
+		final int threads = Math.max(1, Math.min(nThreads, nPlanes));
+		// Scratch arrays are reused from one slice to the next, all threads together keep at most a quarter of the heap
+		engine.setBufferPool(new BufferPool(BufferPool.capacityFor(bufferPoolCapacity, threads)));
+		final AtomicInteger reusedTiles = new AtomicInteger();
+		final AtomicInteger totalTiles = new AtomicInteger();
+		
+		// Masks go to a sink as soon as they are done, instead of an 8-bit stack kept until the end
+		final MaskSink maskSink = outputMask ? createMaskSink(stack.getWidth(), stack.getHeight(), nPlanes) : null;
+		final File roiFile = outputSelection && selectionStorage == 1 ? askRoiFile() : null;
+		
+		// Slices are read ahead by one reader per run of slices, so that disk reads overlap with the segmentation
+		final List<SlicePrefetcher> prefetchers = new ArrayList<SlicePrefetcher>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+		if(timeLapse) {
+			// Each thread follows its own run of consecutive planes, comparing every plane to the one before
+			// Planes are ordered frame after frame for each channel and Z, so a run follows the frames of a focal plane
+			for(int t = 0; t < threads; t++) {
+				final int first = nPlanes * t / threads;
+				final SlicePrefetcher prefetcher = new SlicePrefetcher(stack, Arrays.copyOfRange(stackIndices, first, nPlanes * (t+1) / threads), Math.max(1, prefetchDepth / threads));
+				prefetchers.add(prefetcher);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws InterruptedException, IOException {
+						TimeLapseSegmenter segmenter = new TimeLapseSegmenter(engine, changeTolerance);
+						SlicePrefetcher.Slice slice;
+						while((slice = prefetcher.take()) != null) {
+							final int plane = first + slice.position;
+							results[plane] = toSliceResult(segmenter.segment(slice.processor), slice.index);
+							StageTimer.Split split = stageTimer.start();
+							storeMask(maskSink, results[plane], planes.getOutputIndex(plane));
+							stageTimer.stop(split, Stage.OUTPUT);
+							stageTimer.endSlice(slice.index);
+							IJ.showProgress(done.incrementAndGet(), nPlanes);
+						}
+						reusedTiles.addAndGet(segmenter.getReusedTiles());
+						totalTiles.addAndGet(segmenter.getTotalTiles());
+						return null;
 					}
-	        		}
-	
-	        		if(validPath) {
-	        			toBeRemoved.add((int[])currentPosition);
-	        		}
-			
+				}));
 			}
-
-			for(int j=1; j<toBeRemoved.size();j++){
-				rBinaryImage.setPosition((int)toBeRemoved.get(j)[0],0);
-				rBinaryImage.setPosition((int)toBeRemoved.get(j)[1],1);
-				final UnsignedByteType t = rBinaryImage.get();
-            			t.set(0);  
+		} else {
+			final SlicePrefetcher prefetcher = new SlicePrefetcher(stack, stackIndices, prefetchDepth);
+			prefetchers.add(prefetcher);
+			for(int t = 0; t < threads; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws InterruptedException, IOException {
+						SlicePrefetcher.Slice slice;
+						while((slice = prefetcher.take()) != null) {
+							results[slice.position] = processSlice(slice.processor, slice.index, engine);
+							StageTimer.Split split = stageTimer.start();
+							storeMask(maskSink, results[slice.position], planes.getOutputIndex(slice.position));
+							stageTimer.stop(split, Stage.OUTPUT);
+							stageTimer.endSlice(slice.index);
+							IJ.showProgress(done.incrementAndGet(), nPlanes);
+						}
+						return null;
+					}
+				}));
 			}
-			//IJ.log(""+pixelsToProcess.size());
-
-			pixelsToProcess = new ArrayList<int[]>(toAddToQueue);
-			
-			if(pixelsToProcess.size()==0)
-			{
-				go = false;
+		}
+		executor.shutdown();
+		
+		try {
+			for(Future<?> future : futures) future.get();
+			if(maskSink != null) maskSink.close();
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			for(SlicePrefetcher prefetcher : prefetchers) prefetcher.close();
+			closeQuietly(maskSink);
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			for(SlicePrefetcher prefetcher : prefetchers) prefetcher.close();
+			closeQuietly(maskSink);
+			throw new RuntimeException(e.getCause());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		if(timeLapse) IJ.log("PHANTAST time-lapse: "+reusedTiles.get()+" of "+totalTiles.get()+" tiles reused");
+		
+		// Assemble the outputs in slice order
+		String imageTitle = inputImage.getTitle();
+		if(maskSink instanceof PackedMaskStack) {
+			maskImage = new ImagePlus(imageTitle+"- Output Mask", (PackedMaskStack) maskSink);
+			maskImage.setCalibration(inputImage.getCalibration());
+			if(planes.isHyperstack()) {
+				maskImage.setDimensions(planes.getOutputChannels(), planes.getNSlices(), planes.getNFrames());
+				maskImage.setOpenAsHyperStack(true);
 			}
 		}
+		List<Roi> rois = new ArrayList<Roi>();
+		
+		for(int plane = 0; plane < nPlanes; plane++) {
+			SliceResult result = results[plane];
+			if(outputSelection && result.roi != null) rois.add(result.roi);
+			if(computeConfluency || measureColonies) pendingRows.add(new ResultRow(imageTitle, stackIndices[plane], getPosition(stackIndices[plane]), result.confluency, result.colonies));
+		}
 		
+		// The selections go straight to a ROI zip file, or to the ROI manager at FINAL_PROCESSING
+		if(roiFile != null) {
+			try {
+				writeRoiZip(roiFile, rois);
+				IJ.log("PHANTAST: "+rois.size()+" selections saved to "+roiFile);
+			} catch (IOException e) {
+				IJ.log("PHANTAST: cannot write "+roiFile+" ("+e.getMessage()+"), selections are added to the ROI Manager");
+				stackRois = rois;
+			}
+		} else {
+			stackRois = rois;
+		}
 	}
-	
-	
 
-	double computeConfluency (Img<UnsignedByteType> img)
-	{
-		Cursor<UnsignedByteType> c = img.cursor();		
+	/**
+	 * File the selections of a stack are saved to, or null if the dialog was cancelled
+	 */
+	private File askRoiFile() {
+		SaveDialog sd = new SaveDialog("Save selections as", inputImage.getTitle()+"-selections", ".zip");
+		if(sd.getFileName() == null) return null;
+		return new File(sd.getDirectory(), sd.getFileName());
+	}
 
-		double onPixels = 0;
-		double offPixels = 0;
-		
-		while (c.hasNext())
-		{
-			IntegerType<?> t = c.next();
-			
-			if(t.getInteger()==255)
-			{
-				onPixels++;
+	/**
+	 * Writes the selections to a ROI zip file, one entry per selection, as the ROI Manager saves them
+	 */
+	static void writeRoiZip(File file, List<Roi> rois) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			DataOutputStream out = new DataOutputStream(zip);
+			RoiEncoder encoder = new RoiEncoder(out);
+			Set<String> names = new HashSet<String>();
+			for(Roi roi : rois) {
+				// Entry names must be unique, the ROI Manager names the selections after them
+				String name = roi.getName();
+				for(int n = 2; !names.add(name); n++) name = roi.getName()+"-"+n;
+				zip.putNextEntry(new ZipEntry(name+".roi"));
+				encoder.write(roi);
+				out.flush();
 			}
-			else offPixels++;
-		}
-
-		//IJ.log("" + ((int[])outlinePixelsIndices.get(12))[0]);
-		return (double)onPixels/(onPixels+offPixels);
-	}
-
-	Img<UnsignedByteType> removeSmallObjectsAndFillHoles(Img<UnsignedByteType> img){
-		ResultsTable table = new ResultsTable();
-		//# Create a ParticleAnalyzer, with arguments:
-		//# 1. options (could be SHOW_ROI_MASKS, SHOW_OUTLINES, SHOW_MASKS, SHOW_NONE, ADD_TO_MANAGER, and others; combined with bitwise-or)
-		//# 2. measurement options (see [http://rsb.info.nih.gov/ij/developer/api/ij/measure/Measurements.html Measurements])
-		//# 3. a ResultsTable to store the measurements
-		//# 4. The minimum size of a particle to consider for measurement
-		//# 5. The maximum size (idem)
-		//# 6. The minimum circularity of a particle
-		//# 7. The maximum circularity
-		
-		// Remove small particles
-		ParticleAnalyzer pa = new ParticleAnalyzer(ParticleAnalyzer.SHOW_MASKS, Measurements.AREA, table, 100, Double.POSITIVE_INFINITY, 0.0, 1.0);
-		pa.setHideOutputImage(true);
-		ImagePlus tmp = ImageJFunctions.wrap(img,"Tmp");
-		pa.analyze(tmp);
-
-		// Remove holes
-		ImagePlus tmp2 = pa.getOutputImage();
-		pa = new ParticleAnalyzer(ParticleAnalyzer.SHOW_MASKS, Measurements.AREA, table, 25, Double.POSITIVE_INFINITY, 0.0, 1.0);
-		pa.setHideOutputImage(true);
-		pa.analyze(tmp2);
-
-		BinaryProcessor binaryProc = new BinaryProcessor(new ByteProcessor(pa.getOutputImage().getChannelProcessor(),false)); 
-		binaryProc.invert();
-		ImagePlus tmp3 = new ImagePlus("NoHolesorSmallObjects", binaryProc); 
-		return ImageJFunctions.wrap(tmp3);
- 
+		} finally {
+			zip.close();
+		}
 	}
 
-	Img<UnsignedByteType> getOutlineImage(Img<UnsignedByteType> img, boolean fillImage)
-	{
-		// Create an ImagePlus version of the local contrast image
-		// This is done as I don't know yet how to do outline calculation using imglib2 directly
-		ImagePlus Img_IP = ImageJFunctions.wrap(img,"Thresholded");
-		//LCThresholded_IP.show();
-		
-		if(fillImage) IJ.runPlugIn(Img_IP,"ij.plugin.filter.ThresholdToSelection", "");
+	/**
+	 * Adds the selections to the ROI Manager, with the manager hidden so that its list is only
+	 * redrawn once rather than after every selection.
+	 */
+	private static void addToRoiManager(ImagePlus imp, List<Roi> rois) {
+		RoiManager rm = RoiManager.getInstance();
+		if(rm == null) rm = new RoiManager();
+		rm.setVisible(false);
+		// Selections of hyperstacks keep their channel, slice and frame
+		for(Roi roi : rois) rm.add(imp, roi, imp.isHyperStack() ? -1 : roi.getPosition());
+		rm.setVisible(true);
+		rm.runCommand("Show All");
+	}
+
+	/**
+	 * Bit-packed stack in memory, or compressed TIFF file if chosen in the dialog and a file name is given
+	 */
+	private MaskSink createMaskSink(int width, int height, int nSlices) {
+		maskFile = null;
+		if(maskStorage == 1) {
+			SaveDialog sd = new SaveDialog("Save masks as", inputImage.getTitle()+"-mask", ".tif");
+			if(sd.getFileName() != null) {
+				File file = new File(sd.getDirectory(), sd.getFileName());
+				try {
+					TiffMaskWriter writer = new TiffMaskWriter(file, width, height, !Prefs.blackBackground);
+					maskFile = file;
+					return writer;
+				} catch (IOException e) {
+					IJ.log("PHANTAST: cannot write "+file+" ("+e.getMessage()+"), masks are kept in memory");
+				}
+			}
+		}
+		return new PackedMaskStack(width, height, nSlices, !Prefs.blackBackground);
+	}
+
+	/**
+	 * Hands the mask of a slice to the sink, and drops it from the slice result
+	 */
+	private static void storeMask(MaskSink maskSink, SliceResult result, int slice) throws IOException {
+		if(maskSink == null) return;
+		maskSink.put(slice, (byte[]) result.mask.getPixels());
+		result.mask = null;
+	}
+
+	private static void closeQuietly(MaskSink maskSink) {
+		if(maskSink == null) return;
+		try {
+			maskSink.close();
+		} catch (IOException e) {
+			// Already failing
+		}
+	}
+
+	/**
+	 * Adds the buffered confluencies to the Results table, and the colonies to the Colonies table.
+	 * Tables are shown once for the whole run instead of being repainted after every slice.
+	 */
+	private void publishResults() {
+		if(pendingRows.isEmpty()) return;
 		
-		// Create a binary processor which allows to call outline() directly
-		// Reminder: ImagePlus contain processor (not the other way around!)
-		BinaryProcessor binaryProc = new BinaryProcessor(new ByteProcessor(Img_IP.getChannelProcessor(),false)); 
+		boolean isStack = inputImage.getImageStackSize() > 1;
+		boolean isHyperstack = inputImage.isHyperStack();
+		if(computeConfluency) {
+			ResultsTable rt = ResultsTable.getResultsTable();
+			for(ResultRow row : pendingRows) {
+				rt.incrementCounter();
+				rt.addLabel("Image Name", row.imageName);
+				if(isStack) rt.addValue("Slice", row.slice);
+				if(isHyperstack) addPosition(rt, row);
+				rt.addValue("Confluency", row.confluency);
+			}
+			rt.show("Results");
+		}
 		
-		// Weird but need for some reason
-		binaryProc.invert();
-		binaryProc.outline(); 
-		binaryProc.invert();
+		if(measureColonies) {
+			ResultsTable colonies = new ResultsTable();
+			for(ResultRow row : pendingRows) {
+				ColonyMeasurements measurements = row.colonies;
+				for(int k = 0; k < measurements.size(); k++) {
+					colonies.incrementCounter();
+					colonies.addLabel("Image Name", row.imageName);
+					if(isStack) colonies.addValue("Slice", row.slice);
+					if(isHyperstack) addPosition(colonies, row);
+					colonies.addValue("Colony", k+1);
+					colonies.addValue("Area", measurements.getArea(k));
+					colonies.addValue("Perimeter", measurements.getPerimeter(k));
+					colonies.addValue("X", measurements.getXCentroid(k));
+					colonies.addValue("Y", measurements.getYCentroid(k));
+					colonies.addValue("BX", measurements.getX(k));
+					colonies.addValue("BY", measurements.getY(k));
+					colonies.addValue("Width", measurements.getWidth(k));
+					colonies.addValue("Height", measurements.getHeight(k));
+				}
+			}
+			colonies.show("Colonies");
+		}
+		pendingRows.clear();
+	}
 
-		// Create a new ImagePlus object from the processor
-		ImagePlus outlineImage_IP = new ImagePlus("outline", binaryProc); 
+	private static void addPosition(ResultsTable table, ResultRow row) {
+		table.addValue("C", row.channel);
+		table.addValue("Z", row.z);
+		table.addValue("T", row.frame);
+	}
+
+	/**
+	 * Channel, slice and frame of a slice of the input image, from 1
+	 */
+	private int[] getPosition(int slice) {
+		return inputImage.convertIndexToPosition(slice);
+	}
+
+	/**
+	 * Logs the time spent in every stage, and writes the per slice CSV report to the file set by the
+	 * "timing.report" preference, if any.
+	 */
+	private void reportTiming() {
+		if(!stageTimer.isEnabled() || stageTimer.getSliceCount() == 0) return;
 		
-		//LCThresholdedOutline_IP.show();
+		IJ.log("PHANTAST stage timing\n"+stageTimer.summary());
+		String report = Prefs.get(prefix+"timing.report", "");
+		if(report.length() > 0) {
+			try {
+				FileWriter out = new FileWriter(report);
+				try {
+					stageTimer.writeCsv(out);
+				} finally {
+					out.close();
+				}
+				IJ.log("PHANTAST: stage timing saved to "+report);
+			} catch (IOException e) {
+				IJ.log("PHANTAST: cannot write "+report+" ("+e.getMessage()+")");
+			}
+		}
+		stageTimer = new StageTimer();
+	}
 
-		// Convert back to imglib2 Img format
-		Img< UnsignedByteType > outlineImage = ImageJFunctions.wrap(outlineImage_IP);
+	/**
+	 * Parameters of the segmentation, as currently set in the dialog
+	 */
+	PhantastParameters getParameters() {
+		return new PhantastParameters()
+				.setSigma(sigma)
+				.setEpsilon(epsilon)
+				.setHaloCorrection(doHaloCorrection)
+				.setTileSize(tileSize)
+				.setGaussianMethod(gaussianMethod)
+				.setMeasureColonies(measureColonies && !previewing);
+	}
 
-		return outlineImage;
+	/**
+	 * Segments a single slice. Only the arguments and local variables are touched, so that
+	 * several slices can be processed at the same time.
+	 * @param ip the slice to segment
+	 * @param slice the slice number, used to position and name the selection
+	 * @param engine the segmentation engine, shared by all threads
+	 * @return the mask, selection, confluency and colonies of the slice
+	 */
+	SliceResult processSlice(ImageProcessor ip, int slice, PhantastEngine engine) {
+		return toSliceResult(engine.segment(ip), slice);
 	}
 
-	Img<T> getImageWithOverlay(Img<T> img, ArrayList<int[]> maskPixels, double outlineValue)
-	{
-		Img<T> tmpImage = img.copy();
+	/**
+	 * Builds the displayed mask and the selection from the segmentation of a slice
+	 */
+	SliceResult toSliceResult(PhantastResult segmentation, int slice) {
+		StageTimer timer = previewing ? StageTimer.DISABLED : stageTimer;
+		SliceResult result = new SliceResult();
+		result.confluency = segmentation.getConfluency();
+		result.colonies = segmentation.getColonies();
+
+		// Objects are 255, display them according to the binary options, as "Convert to Mask" would
+		StageTimer.Split split = timer.start();
+		ImageProcessor mask = segmentation.toProcessor();
+		if(!Prefs.blackBackground) mask.invertLut();
+		result.mask = mask;
+		timer.stop(split, Stage.OUTPUT);
+
+		// Create the selection, traced directly from the mask pixels
+		split = timer.start();
+		result.roi = ContourTracer.trace(segmentation.getMask(), segmentation.getWidth(), segmentation.getHeight());
+		if(result.roi != null) {
+			if(inputImage.isHyperStack()) {
+				int[] position = getPosition(slice);
+				result.roi.setPosition(position[0], position[1], position[2]);
+				result.roi.setName("C"+position[0]+" Z"+IJ.pad(position[1],3)+" T"+IJ.pad(position[2],3));
+			} else {
+				result.roi.setPosition(slice);
+				result.roi.setName("Slice "+IJ.pad(slice,3));
+			}
+		}
+		timer.stop(split, Stage.SELECTION);
 		
-		final RandomAccess< T > r = tmpImage.randomAccess();
+		return result;
+	}
 
-		int[] currentPosition = new int[2];
-		
-		for(int i=0;i<maskPixels.size();i++)
-		{
-			// Get current position index
-			currentPosition = maskPixels.get(i);
-	
-			r.setPosition( (int)currentPosition[0], 0 );
-	    		r.setPosition( (int)currentPosition[1], 1 );
+	/**
+	 * Outputs of the segmentation of one slice
+	 */
+	static class SliceResult {
+		ImageProcessor mask;
+		Roi roi;
+		double confluency;
+		ColonyMeasurements colonies;
+	}
 
-	    		final RealType<T> t = r.get();
-	    		t.setReal(outlineValue);
+	/**
+	 * Row of the Results table, with the colonies of the slice, waiting to be published
+	 */
+	static class ResultRow {
+		final String imageName;
+		final int slice;
+		final int channel, z, frame; // Position of the slice in a hyperstack
+		final double confluency;
+		final ColonyMeasurements colonies;
+
+		ResultRow(String imageName, int slice, int[] position, double confluency, ColonyMeasurements colonies) {
+			this.imageName = imageName;
+			this.slice = slice;
+			this.channel = position[0];
+			this.z = position[1];
+			this.frame = position[2];
+			this.confluency = confluency;
+			this.colonies = colonies;
 		}
+	}
 
-		return tmpImage;
+	// Let IJ know about our progress
+	void showProgress()
+	{
+		double percent = (double)pass/nPasses;
+        	IJ.showProgress(percent);
 	}
 
+	/**
+	 * Local contrast of a 2D image, see {@link LocalContrastFilter}.
+	 * Kept for callers working with Img, the plugin itself works on the float pixels directly.
+	 */
 	public Img<T> getLocalContrastImage(Img<T> img, double sigma_)
 	{
-		final double[] sigma = new double[ img.numDimensions() ];
-		
-		for ( int d = 0; d < sigma.length; ++d )
-		    sigma[ d ] = sigma_;
-
-		final Img< T > imageRooted = squareImage(img);
+		final int width = (int) img.dimension(0);
+		final int height = (int) img.dimension(1);
 
-		final Img< T > imageRootedConvolved = Gauss.inFloat( sigma, imageRooted );
+		final float[] pixels = new float[width*height];
+		Cursor<T> c = Views.flatIterable(img).cursor();
+		for(int i = 0; c.hasNext(); i++) pixels[i] = c.next().getRealFloat();
 
-		final Img< T > imageConvolved = Gauss.inFloat( sigma, img );
+		final float[] localContrastPixels = new LocalContrastFilter().apply(pixels, width, height, sigma_);
 
-		final Img< T > imageConvolvedRooted = squareImage(imageConvolved);
-
-		final Img< T > localContrast = divideImages(squareRootImage(subtractImages(imageRootedConvolved,imageConvolvedRooted)),imageConvolved);
+		ImgFactory< T > imgFactory = new ArrayImgFactory< T >();
+		final Img< T > localContrast = imgFactory.create( img, img.firstElement() );
+		c = Views.flatIterable(localContrast).cursor();
+		for(int i = 0; c.hasNext(); i++) c.next().setReal(localContrastPixels[i]);
 
 		return localContrast;
 	}
 	
+	/**
+	 * @see PhantastEngine#getDirectionImage(ImagePlus)
+	 */
 	public Img<UnsignedByteType> getDirectionImage(ImagePlus img)
 	{
-		float[][] kirsch = new float[][] { {-3,-3,5,-3,0,5,-3,-3,5},
-						   {-3,5,5,-3,0,5,-3,-3,-3},
-					   	   {5,5,5,-3,0,-3,-3,-3,-3},					   	   
-					   	   {5,5,-3,5,0,-3,-3,-3,-3},					   	   
-					   	   {5,-3,-3,5,0,-3,5,-3,-3},					   	   
-					   	   {-3,-3,-3,5,0,-3,5,5,-3},					   	   
-					   	   {-3,-3,-3,-3,0,-3,5,5,5},					   	   
-					   	   {-3,-3,-3,-3,0,5,-3,5,5}};
-
-
-		Img<UnsignedByteType>[] responseImages = new Img[8];
-
-		for(int i = 0; i < 8; i++)
-		{
-			ImagePlus tmp = img.duplicate();
-			tmp.getChannelProcessor().convolve(kirsch[i],3,3);
-			responseImages[i] = ImagePlusAdapter.wrap(tmp);
-		}
-
-		Cursor c1 = responseImages[0].cursor();
-		Cursor c2 = responseImages[1].cursor();
-		Cursor c3 = responseImages[2].cursor();
-		Cursor c4 = responseImages[3].cursor();
-		Cursor c5 = responseImages[4].cursor();
-		Cursor c6 = responseImages[5].cursor();
-		Cursor c7 = responseImages[6].cursor();
-		Cursor c8 = responseImages[7].cursor();
-
-
-
-		long[] dim = new long[2];
-		responseImages[0].dimensions(dim);
-		
-		//final Img< T > directionImage = imgFactory.create( responseImages[0], responseImages[0].firstElement() );
-
-		ImgFactory< UnsignedByteType > imgFactory = new ArrayImgFactory< UnsignedByteType >();
-		final Img<UnsignedByteType> directionImage = imgFactory.create(dim,new UnsignedByteType());
-		//final Img< T > directionImage = imgFactory.create(dim,new RealType());
-		
-		Cursor<UnsignedByteType> cDirection = directionImage.cursor();
-		
-		while (c1.hasNext())
-		{
-			RealType[] t = new RealType[8]; 
-			t[0] = (RealType)c1.next();
-			t[1] = (RealType)c2.next();
-			t[2] = (RealType)c3.next();
-			t[3] = (RealType)c4.next();
-			t[4] = (RealType)c5.next();
-			t[5] = (RealType)c6.next();
-			t[6] = (RealType)c7.next();
-			t[7] = (RealType)c8.next();
-
-			RealType tDirection = cDirection.next();
-
-			float max = 0f;
-			int kernelId = 0;
-			for(int i = 0; i < 8; i++)
-			{
-				float currentValue = t[i].getRealFloat();
-				if(i==0) 
-				{
-					max = currentValue;
-					kernelId = 0;
-				}
-				else if(currentValue>max) 
-				{
-					max = currentValue;
-					kernelId = i;
-				}
-			}
-
-			tDirection.setReal(kernelId);
-			
-		}
-
-		return directionImage;
+		return PhantastEngine.getDirectionImage(img);
 	}
 
+	/**
+	 * @see PhantastEngine#getOutlinePixels(Img)
+	 */
 	public < T extends RealType< T > & NativeType< T > > ArrayList<int[]> getOutlinePixels(Img<T> img)
 	{
-		ArrayList<int[]> outlinePixelsIndices = new ArrayList<int[]>();
-
-		Cursor<T> c = img.cursor();		
-
-		while (c.hasNext())
-		{
-			IntegerType t = (IntegerType)c.next();
-			int[] position = new int[2];
-			
-			if(t.getInteger()==255)
-			{
-				c.localize(position);
-				outlinePixelsIndices.add(position);
-			}
-		}
+		return PhantastEngine.getOutlinePixels(img);
+	}
 
-		//IJ.log("" + ((int[])outlinePixelsIndices.get(12))[0]);
-		return outlinePixelsIndices;
+	/**
+	 * @see PhantastEngine#thresholdImage(float[], int, int, double)
+	 */
+	public Img<UnsignedByteType> thresholdImage(float[] pixels, int width, int height, double thresholdValue)
+	{
+		return PhantastEngine.thresholdImage(pixels, width, height, thresholdValue);
 	}
 
 	public Img<UnsignedByteType> thresholdImage(Img<T> img, double thresholdValue)
@@ -759,6 +957,15 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 		
 		// Create an Img with the same dimension as the input image
 		final Img< UnsignedByteType > tmpImage = imgFactory.create( dim, new UnsignedByteType() );
+
+		// 8, 16 and 32-bit arrays are thresholded directly
+		final Object pixels = PixelKernels.pixelArray(img);
+		final Object mask = PixelKernels.pixelArray(tmpImage);
+		if(pixels != null && mask instanceof byte[])
+		{
+			PixelKernels.threshold(pixels, thresholdValue, (byte[]) mask);
+			return tmpImage;
+		}
 	
 		// Create a cursor for both images
 		Cursor<T> c1 = img.cursor();
@@ -788,6 +995,13 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 	
 	public < T extends RealType< T > & NativeType< T > > void scaleImage(Img<T> img)
 	{
+		final float[] pixels = PixelKernels.floatArray(img);
+		if(pixels != null)
+		{
+			PixelKernels.scale(pixels);
+			return;
+		}
+
 		// create two empty variables
 		T min = img.firstElement().createVariable();
 		T max = img.firstElement().createVariable();
@@ -852,6 +1066,16 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 
 		// Create an Img with the same dimension as the input image
 		final Img< T > tmpImage = imgFactory.create( img1, img1.firstElement() );
+
+		// Float images are computed directly on their arrays
+		final float[] a = PixelKernels.floatArray(img1);
+		final float[] b = PixelKernels.floatArray(img2);
+		final float[] out = PixelKernels.floatArray(tmpImage);
+		if(a != null && b != null && out != null && b.length == a.length)
+		{
+			PixelKernels.multiply(a, b, out);
+			return tmpImage;
+		}
 		
 		// Create a cursor for both images
 		Cursor<T> c1 = img1.cursor();
@@ -880,6 +1104,16 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 
 		// Create an Img with the same dimension as the input image
 		final Img< T > tmpImage = imgFactory.create( img1, img1.firstElement() );
+
+		// Float images are computed directly on their arrays
+		final float[] a = PixelKernels.floatArray(img1);
+		final float[] b = PixelKernels.floatArray(img2);
+		final float[] out = PixelKernels.floatArray(tmpImage);
+		if(a != null && b != null && out != null && b.length == a.length)
+		{
+			PixelKernels.divide(a, b, out);
+			return tmpImage;
+		}
 		
 		// Create a cblurGaussianblurGaussianursor for both images
 		Cursor<T> c1 = img1.cursor();
@@ -914,6 +1148,16 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 
 		// Create an Img with the same dimension as the input image
 		final Img< T > tmpImage = imgFactory.create( img1, img1.firstElement() );
+
+		// Float images are computed directly on their arrays
+		final float[] a = PixelKernels.floatArray(img1);
+		final float[] b = PixelKernels.floatArray(img2);
+		final float[] out = PixelKernels.floatArray(tmpImage);
+		if(a != null && b != null && out != null && b.length == a.length)
+		{
+			PixelKernels.subtract(a, b, out);
+			return tmpImage;
+		}
 		
 		// Create a cursor for both images
 		Cursor<T> c1 = img1.cursor();
@@ -948,6 +1192,14 @@ public class PHANTAST_<T extends RealType<T> & NativeType<T>> implements Extende
 
 		// Create an Img with the same dimension as the input image
 		final Img< T > tmpImage = imgFactory.create( img, img.firstElement() );
+
+		final float[] pixels = PixelKernels.floatArray(img);
+		final float[] out = PixelKernels.floatArray(tmpImage);
+		if(pixels != null && out != null)
+		{
+			PixelKernels.sqrt(pixels, out);
+			return tmpImage;
+		}
 		
 		// Create a cursor for both images
 		Cursor<T> c1 = img.cursor();
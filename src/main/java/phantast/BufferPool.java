@@ -0,0 +1,163 @@
+package phantast;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scratch arrays of the segmentation, reused from one slice to the next instead of being
+ * allocated for every slice.
+ * <p>
+ * Every thread borrows from its own arena, so borrowing does not contend between the threads
+ * segmenting different slices. An array is only reused for a request of the same type and
+ * length, which is the case for all the slices of a stack and for images of the same size.
+ * Borrowed arrays are given back with {@link #release(Object)} once the stage is done with
+ * them. The arrays kept by each thread add up to at most the capacity of the pool, the oldest
+ * ones being dropped first, and an array larger than the capacity is never kept. The contents
+ * of a borrowed array are undefined, callers that need zeros clear it.
+ * <p>
+ * {@link #NONE} keeps nothing and allocates a new array for every request.
+ */
+public class BufferPool {
+
+	/** Default capacity, per thread */
+	public static final long DEFAULT_CAPACITY = 256L << 20;
+
+	/** A pool that does not keep any array */
+	public static final BufferPool NONE = new BufferPool(0);
+
+	private final long capacity;
+	private final List<Arena> arenas = new ArrayList<Arena>();
+	private final ThreadLocal<Arena> arena = new ThreadLocal<Arena>() {
+		@Override
+		protected Arena initialValue() {
+			final Arena created = new Arena();
+			synchronized(arenas) {
+				arenas.add(created);
+			}
+			return created;
+		}
+	};
+
+	/**
+	 * @param capacity bytes that each thread may keep between two slices, 0 to keep nothing
+	 */
+	public BufferPool(long capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Capacity per thread so that the arrays kept by all threads take at most a quarter of the heap
+	 * @param preferred the capacity asked for, in bytes
+	 */
+	public static long capacityFor(long preferred, int nThreads) {
+		return Math.min(preferred, Runtime.getRuntime().maxMemory() / 4 / Math.max(1, nThreads));
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public byte[] bytes(int length) {
+		final Object array = borrow(byte[].class, length);
+		return array != null ? (byte[]) array : new byte[length];
+	}
+
+	public int[] ints(int length) {
+		final Object array = borrow(int[].class, length);
+		return array != null ? (int[]) array : new int[length];
+	}
+
+	public float[] floats(int length) {
+		final Object array = borrow(float[].class, length);
+		return array != null ? (float[]) array : new float[length];
+	}
+
+	/**
+	 * Gives an array back to the arena of the current thread, it must not be used afterwards.
+	 * @param array a byte[], int[] or float[], nothing is done if null
+	 */
+	public void release(Object array) {
+		if(array == null || capacity == 0) return;
+		final long size = sizeOf(array);
+		if(size > capacity) return;
+		arena.get().add(array, size, capacity);
+	}
+
+	/**
+	 * Drops the arrays kept by all threads, for instance at the end of a run.
+	 */
+	public void clear() {
+		synchronized(arenas) {
+			for(Arena kept : arenas) kept.clear();
+		}
+	}
+
+	/**
+	 * @return the bytes currently kept by all threads
+	 */
+	public long getKeptBytes() {
+		long total = 0;
+		synchronized(arenas) {
+			for(Arena kept : arenas) total += kept.getBytes();
+		}
+		return total;
+	}
+
+	private Object borrow(Class<?> type, int length) {
+		if(capacity == 0) return null;
+		return arena.get().take(type, length);
+	}
+
+	private static long sizeOf(Object array) {
+		if(array instanceof byte[]) return ((byte[]) array).length;
+		if(array instanceof int[]) return 4L*((int[]) array).length;
+		if(array instanceof float[]) return 4L*((float[]) array).length;
+		throw new IllegalArgumentException("Unsupported buffer type "+array.getClass().getSimpleName());
+	}
+
+	private static int lengthOf(Object array) {
+		if(array instanceof byte[]) return ((byte[]) array).length;
+		if(array instanceof int[]) return ((int[]) array).length;
+		return ((float[]) array).length;
+	}
+
+	/**
+	 * Arrays kept by one thread, oldest first. Only locked by its thread, except when the pool is cleared.
+	 */
+	private static class Arena {
+		private final List<Object> arrays = new ArrayList<Object>();
+		private long bytes;
+
+		synchronized Object take(Class<?> type, int length) {
+			// Most recently released first, as it is the most likely to still be in the cache
+			for(int k = arrays.size()-1; k >= 0; k--) {
+				final Object array = arrays.get(k);
+				if(array.getClass() == type && lengthOf(array) == length) {
+					arrays.remove(k);
+					bytes -= sizeOf(array);
+					return array;
+				}
+			}
+			return null;
+		}
+
+		synchronized void add(Object array, long size, long capacity) {
+			for(Iterator<Object> it = arrays.iterator(); it.hasNext() && bytes + size > capacity;) {
+				bytes -= sizeOf(it.next());
+				it.remove();
+			}
+			arrays.add(array);
+			bytes += size;
+		}
+
+		synchronized void clear() {
+			arrays.clear();
+			bytes = 0;
+		}
+
+		synchronized long getBytes() {
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package phantast;
+
+/**
+ * Area, perimeter, centroid and bounding box of every colony of a mask, as a table with one
+ * array per column.
+ * <p>
+ * Colonies are the 8-connected components of the mask, as for {@link ComponentFilter}, and are
+ * numbered in the order of their first pixel, row by row. All the columns are accumulated while
+ * the labels are resolved, in a single pass over the labeled image, so there is no need for a
+ * separate Analyze Particles run. Values are in pixels. The perimeter is the number of pixel edges
+ * between the colony and the background or the border of the image, holes included.
+ */
+public class ColonyMeasurements {
+
+	private final int count;
+	private final int[] area;
+	private final int[] perimeter;
+	private final double[] xCentroid;
+	private final double[] yCentroid;
+	private final int[] xMin;
+	private final int[] yMin;
+	private final int[] boxWidth;
+	private final int[] boxHeight;
+
+	private ColonyMeasurements(int count) {
+		this.count = count;
+		area = new int[count];
+		perimeter = new int[count];
+		xCentroid = new double[count];
+		yCentroid = new double[count];
+		xMin = new int[count];
+		yMin = new int[count];
+		boxWidth = new int[count];
+		boxHeight = new int[count];
+	}
+
+	/**
+	 * Measures the colonies of a mask.
+	 * @param mask the mask, 255 for objects and 0 for background, row by row
+	 */
+	public static ColonyMeasurements measure(byte[] mask, int width, int height) {
+		return measure(mask, width, height, new int[width*height]);
+	}
+
+	/**
+	 * @param labels scratch array of the size of the mask, its contents do not matter
+	 * @see #measure(byte[], int, int)
+	 */
+	public static ColonyMeasurements measure(byte[] mask, int width, int height, int[] labels) {
+		final int[] parent = ComponentFilter.label(mask, width, height, (byte) 255, labels);
+		final int nLabels = parent.length;
+
+		// Accumulated on the root of every component, sums are long as colonies can cover the whole image
+		final int[] area = new int[nLabels];
+		final int[] perimeter = new int[nLabels];
+		final long[] xSum = new long[nLabels];
+		final long[] ySum = new long[nLabels];
+		final int[] xMin = new int[nLabels], yMin = new int[nLabels];
+		final int[] xMax = new int[nLabels], yMax = new int[nLabels];
+
+		for(int y = 0, i = 0; y < height; y++) {
+			for(int x = 0; x < width; x++, i++) {
+				if(labels[i] == 0) continue;
+				final int root = ComponentFilter.find(parent, labels[i]);
+
+				if(area[root] == 0) {
+					// First pixel of the colony, which is also its top row
+					xMin[root] = x;
+					xMax[root] = x;
+					yMin[root] = y;
+				}
+				area[root]++;
+				xSum[root] += x;
+				ySum[root] += y;
+				if(x < xMin[root]) xMin[root] = x;
+				if(x > xMax[root]) xMax[root] = x;
+				yMax[root] = y;
+
+				// Edges shared with the background or the border
+				int edges = 0;
+				if(x == 0 || mask[i-1] == 0) edges++;
+				if(x == width-1 || mask[i+1] == 0) edges++;
+				if(y == 0 || mask[i-width] == 0) edges++;
+				if(y == height-1 || mask[i+width] == 0) edges++;
+				perimeter[root] += edges;
+			}
+		}
+
+		// Roots are the smallest label of their component, so they come in the order of the first pixels
+		int count = 0;
+		for(int label = 1; label < nLabels; label++) {
+			if(parent[label] == label) count++;
+		}
+
+		final ColonyMeasurements colonies = new ColonyMeasurements(count);
+		for(int label = 1, k = 0; label < nLabels; label++) {
+			if(parent[label] != label) continue;
+			colonies.area[k] = area[label];
+			colonies.perimeter[k] = perimeter[label];
+			// Pixel centres, as ImageJ measures centroids
+			colonies.xCentroid[k] = (double) xSum[label] / area[label] + 0.5;
+			colonies.yCentroid[k] = (double) ySum[label] / area[label] + 0.5;
+			colonies.xMin[k] = xMin[label];
+			colonies.yMin[k] = yMin[label];
+			colonies.boxWidth[k] = xMax[label] - xMin[label] + 1;
+			colonies.boxHeight[k] = yMax[label] - yMin[label] + 1;
+			k++;
+		}
+		return colonies;
+	}
+
+	/**
+	 * @return the number of colonies, which is the number of rows of the table
+	 */
+	public int size() {
+		return count;
+	}
+
+	public int getArea(int colony) {
+		return area[colony];
+	}
+
+	public int getPerimeter(int colony) {
+		return perimeter[colony];
+	}
+
+	public double getXCentroid(int colony) {
+		return xCentroid[colony];
+	}
+
+	public double getYCentroid(int colony) {
+		return yCentroid[colony];
+	}
+
+	/**
+	 * @return the left column of the bounding box
+	 */
+	public int getX(int colony) {
+		return xMin[colony];
+	}
+
+	/**
+	 * @return the top row of the bounding box
+	 */
+	public int getY(int colony) {
+		return yMin[colony];
+	}
+
+	public int getWidth(int colony) {
+		return boxWidth[colony];
+	}
+
+	public int getHeight(int colony) {
+		return boxHeight[colony];
+	}
+}
@@ -0,0 +1,146 @@
+package phantast;
+
+import java.awt.geom.GeneralPath;
+import java.util.Arrays;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+/**
+ * Outlines the objects of a mask as a selection, without thresholding an ImageJ processor.
+ * <p>
+ * The outlines follow the cracks between object and background pixels, as ThresholdToSelection
+ * does, so the selection covers exactly the object pixels. Every boundary is traced once with the
+ * objects on its right: outer boundaries run clockwise and holes counter-clockwise. Where two
+ * objects only touch by a corner, the tracer turns so that each keeps its own outline. Only the
+ * corners are stored, and all the loops are put in a single even-odd path, so a slice gives one
+ * compact {@link ShapeRoi}, or a {@link PolygonRoi} when it has a single outline.
+ */
+public class ContourTracer {
+
+	private static final int EAST = 0, SOUTH = 1, WEST = 2, NORTH = 3;
+
+	private final byte[] mask;
+	private final int width;
+	private final int height;
+
+	// Edges already traced: horizontal edges (x,y)-(x+1,y), and vertical edges (x,y)-(x,y+1)
+	private final boolean[] horizontalDone;
+	private final boolean[] verticalDone;
+
+	private int[] xs = new int[256];
+	private int[] ys = new int[256];
+	private int nPoints;
+
+	private ContourTracer(byte[] mask, int width, int height) {
+		this.mask = mask;
+		this.width = width;
+		this.height = height;
+		horizontalDone = new boolean[width*(height+1)];
+		verticalDone = new boolean[(width+1)*height];
+	}
+
+	/**
+	 * Traces the outlines of the non-zero pixels of a mask.
+	 * @param mask the mask, row by row
+	 * @return the selection, or null if the mask is empty
+	 */
+	public static Roi trace(byte[] mask, int width, int height) {
+		return new ContourTracer(mask, width, height).trace();
+	}
+
+	private Roi trace() {
+		final GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+		int nLoops = 0;
+		int[] firstX = null, firstY = null;
+
+		// Every outline has at least one horizontal edge, where the tracing starts
+		for(int y = 0; y <= height; y++) {
+			for(int x = 0; x < width; x++) {
+				if(horizontalDone[y*width + x]) continue;
+				final boolean below = isObject(x, y), above = isObject(x, y-1);
+				if(below == above) continue;
+
+				if(below) traceLoop(x, y, EAST);
+				else traceLoop(x+1, y, WEST);
+
+				if(nLoops == 0) {
+					firstX = Arrays.copyOf(xs, nPoints);
+					firstY = Arrays.copyOf(ys, nPoints);
+				}
+				path.moveTo(xs[0], ys[0]);
+				for(int i = 1; i < nPoints; i++) path.lineTo(xs[i], ys[i]);
+				path.closePath();
+				nLoops++;
+			}
+		}
+
+		if(nLoops == 0) return null;
+		if(nLoops == 1) return new PolygonRoi(firstX, firstY, firstX.length, Roi.TRACED_ROI);
+		return new ShapeRoi(path);
+	}
+
+	/**
+	 * Follows one outline from the vertex (x,y), leaving it in the given direction,
+	 * and keeps the corners in xs and ys.
+	 */
+	private void traceLoop(final int startX, final int startY, final int startDirection) {
+		nPoints = 0;
+		int x = startX, y = startY, direction = startDirection;
+
+		do {
+			markDone(x, y, direction);
+			switch(direction) {
+				case EAST:  x++; break;
+				case SOUTH: y++; break;
+				case WEST:  x--; break;
+				default:    y--; break;
+			}
+
+			// Right turn first, so that objects touching by a corner are outlined separately
+			int next;
+			if(hasEdge(x, y, (direction+1) & 3)) next = (direction+1) & 3;
+			else if(hasEdge(x, y, direction)) next = direction;
+			else next = (direction+3) & 3;
+
+			if(next != direction) addPoint(x, y);
+			direction = next;
+		} while(x != startX || y != startY || direction != startDirection);
+	}
+
+	/**
+	 * Whether an outline leaves the vertex (x,y) in the given direction, with an object on its right
+	 */
+	private boolean hasEdge(int x, int y, int direction) {
+		switch(direction) {
+			case EAST:  return isObject(x, y) && !isObject(x, y-1);
+			case SOUTH: return isObject(x-1, y) && !isObject(x, y);
+			case WEST:  return isObject(x-1, y-1) && !isObject(x-1, y);
+			default:    return isObject(x, y-1) && !isObject(x-1, y-1);
+		}
+	}
+
+	private void markDone(int x, int y, int direction) {
+		switch(direction) {
+			case EAST:  horizontalDone[y*width + x] = true; break;
+			case WEST:  horizontalDone[y*width + x-1] = true; break;
+			case SOUTH: verticalDone[y*(width+1) + x] = true; break;
+			default:    verticalDone[(y-1)*(width+1) + x] = true; break;
+		}
+	}
+
+	private boolean isObject(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height && mask[y*width + x] != 0;
+	}
+
+	private void addPoint(int x, int y) {
+		if(nPoints == xs.length) {
+			xs = Arrays.copyOf(xs, nPoints*2);
+			ys = Arrays.copyOf(ys, nPoints*2);
+		}
+		xs[nPoints] = x;
+		ys[nPoints] = y;
+		nPoints++;
+	}
+}
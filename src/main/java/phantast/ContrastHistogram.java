@@ -0,0 +1,89 @@
+package phantast;
+
+/**
+ * Histogram of a local contrast image, giving the thresholded coverage for any epsilon without
+ * running the pipeline again.
+ * <p>
+ * Thresholding is the only stage that depends on epsilon, so the fraction of pixels above a
+ * threshold can be read from the histogram in O(bins). Bin k holds the values in
+ * (k*binWidth, (k+1)*binWidth], which makes the coverage exact for every multiple of the bin
+ * width, and the values above the last bin are counted together. The coverage is the one of
+ * the raw threshold, before the small objects and holes are cleaned and before the halo
+ * correction, so it is an upper bound of the confluency rather than the confluency itself.
+ */
+public class ContrastHistogram {
+
+	/** Default range and step of the epsilon curves */
+	public static final double DEFAULT_MAX_EPSILON = 0.2;
+	public static final double DEFAULT_BIN_WIDTH = 0.001;
+
+	private final double binWidth;
+	private final long[] counts;   // counts[k] = pixels in (k*binWidth, (k+1)*binWidth]
+	private final long above;      // pixels above the last bin
+	private final long total;
+
+	/**
+	 * @param localContrast the local contrast image
+	 * @param maxEpsilon largest threshold of interest
+	 * @param binWidth step between two thresholds
+	 */
+	public ContrastHistogram(float[] localContrast, double maxEpsilon, double binWidth) {
+		this.binWidth = binWidth;
+		final int nBins = (int) Math.ceil(maxEpsilon / binWidth);
+		counts = new long[nBins];
+
+		long over = 0;
+		for(int i = 0; i < localContrast.length; i++) {
+			final double v = localContrast[i];
+			if(!(v > 0)) continue; // never above a non-negative threshold
+
+			int bin = (int) Math.ceil(v / binWidth) - 1;
+			// Rounding of the division can put v on the wrong side of an edge
+			if(bin >= 0 && !(v > bin * binWidth)) bin--;
+			else if(v > (bin+1) * binWidth) bin++;
+			bin = Math.max(bin, 0);
+
+			if(bin < nBins) counts[bin]++;
+			else over++;
+		}
+		above = over;
+		total = localContrast.length;
+	}
+
+	public ContrastHistogram(float[] localContrast) {
+		this(localContrast, DEFAULT_MAX_EPSILON, DEFAULT_BIN_WIDTH);
+	}
+
+	/**
+	 * @return the thresholds at which the coverage is exact, from 0 to the largest threshold
+	 */
+	public double[] epsilons() {
+		final double[] epsilons = new double[counts.length+1];
+		for(int k = 0; k < epsilons.length; k++) epsilons[k] = k * binWidth;
+		return epsilons;
+	}
+
+	/**
+	 * Coverage for every threshold of {@link #epsilons()}, computed with a single cumulative sum.
+	 */
+	public double[] coverages() {
+		final double[] coverages = new double[counts.length+1];
+		long sum = above;
+		coverages[counts.length] = (double) sum / total;
+		for(int k = counts.length-1; k >= 0; k--) {
+			sum += counts[k];
+			coverages[k] = (double) sum / total;
+		}
+		return coverages;
+	}
+
+	/**
+	 * Fraction of the pixels strictly above epsilon, rounded down to the closest multiple of the bin width.
+	 */
+	public double coverage(double epsilon) {
+		final int k = Math.max(0, Math.min(counts.length, (int) Math.floor(epsilon / binWidth + 1e-9)));
+		long sum = above;
+		for(int i = k; i < counts.length; i++) sum += counts[i];
+		return (double) sum / total;
+	}
+}
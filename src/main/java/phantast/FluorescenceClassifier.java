@@ -0,0 +1,114 @@
+package phantast;
+
+import java.awt.image.IndexColorModel;
+
+import ij.gui.ImageRoi;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Classifies the pixels of a segmentation as fluorescence positive cells, negative cells or
+ * background, for the AFI_ plugin.
+ * <p>
+ * Every pixel is classified in a single pass into one indexed image, shown as one overlay,
+ * instead of building a mask per class. The blurred fluorescence image is kept between calls,
+ * so that a preview only blurs again when another fluorescence image is chosen, and changing
+ * the threshold or the mask only costs the classification pass.
+ */
+public class FluorescenceClassifier {
+
+	/** Indices of the classes in the overlay image, 0 is transparent */
+	public static final int BACKGROUND = 1, NEGATIVE = 2, POSITIVE = 3;
+
+	/** Default fluorescence level, after blurring, above which a cell is positive */
+	public static final double DEFAULT_THRESHOLD = 24;
+
+	private static final double BLUR_SIGMA = 2;
+	private static final double BLUR_ACCURACY = 0.02;
+
+	private static final IndexColorModel COLORS = createColorModel();
+
+	// Blurred fluorescence, and the pixels it was computed from
+	private Object blurredSource;
+	private float[] blurred;
+
+	/**
+	 * Classifies every pixel of the mask.
+	 * @param mask the segmentation, non-zero for cells
+	 * @param fluorescence the fluorescence image, of the same size
+	 * @param threshold blurred fluorescence level from which a cell is positive
+	 * @return the class of every pixel, with a color model showing positive cells in green,
+	 * negative cells in red and the background in black
+	 */
+	public ByteProcessor classify(ImageProcessor mask, ImageProcessor fluorescence, double threshold) {
+		final int width = mask.getWidth();
+		final int height = mask.getHeight();
+		if(fluorescence.getWidth() != width || fluorescence.getHeight() != height) {
+			throw new IllegalArgumentException("The mask and the fluorescence image must have the same size");
+		}
+
+		final float[] level = blur(fluorescence);
+		final byte[] classes = new byte[width*height];
+		final Object maskPixels = mask.getPixels();
+
+		if(maskPixels instanceof byte[]) {
+			final byte[] cells = (byte[]) maskPixels;
+			for(int i = 0; i < classes.length; i++) {
+				classes[i] = (byte) (cells[i] == 0 ? BACKGROUND : level[i] >= threshold ? POSITIVE : NEGATIVE);
+			}
+		} else {
+			for(int i = 0; i < classes.length; i++) {
+				classes[i] = (byte) (mask.getf(i) == 0 ? BACKGROUND : level[i] >= threshold ? POSITIVE : NEGATIVE);
+			}
+		}
+		return new ByteProcessor(width, height, classes, COLORS);
+	}
+
+	/**
+	 * Classifies every pixel of the mask, as an overlay covering the whole image.
+	 * @param opacity opacity of the overlay, from 0 to 1
+	 */
+	public ImageRoi classifyAsRoi(ImageProcessor mask, ImageProcessor fluorescence, double threshold, double opacity) {
+		final ImageRoi roi = new ImageRoi(0, 0, classify(mask, fluorescence, threshold));
+		roi.setZeroTransparent(true);
+		roi.setOpacity(opacity);
+		return roi;
+	}
+
+	/**
+	 * Blurred fluorescence as floats, reused as long as the fluorescence pixels are the same
+	 */
+	private synchronized float[] blur(ImageProcessor fluorescence) {
+		final Object pixels = fluorescence.getPixels();
+		if(pixels != blurredSource || blurred == null) {
+			// Green channel of RGB images, as AFI_ always did; the only channel of greyscale images
+			final FloatProcessor fp = fluorescence.toFloat(1, null);
+			// toFloat shares the pixels of float images, which must not be blurred in place
+			final FloatProcessor copy = fp.getPixels() == pixels ? (FloatProcessor) fp.duplicate() : fp;
+			new GaussianBlur().blurGaussian(copy, BLUR_SIGMA, BLUR_SIGMA, BLUR_ACCURACY);
+			blurred = (float[]) copy.getPixels();
+			blurredSource = pixels;
+		}
+		return blurred;
+	}
+
+	/**
+	 * Forgets the blurred fluorescence, for instance after the fluorescence image was modified
+	 */
+	public synchronized void clear() {
+		blurredSource = null;
+		blurred = null;
+	}
+
+	private static IndexColorModel createColorModel() {
+		final byte[] reds = new byte[256];
+		final byte[] greens = new byte[256];
+		final byte[] blues = new byte[256];
+		reds[BACKGROUND] = greens[BACKGROUND] = blues[BACKGROUND] = (byte) 5;
+		reds[NEGATIVE] = (byte) 255;
+		greens[POSITIVE] = (byte) 255;
+		return new IndexColorModel(8, 256, reds, greens, blues);
+	}
+}
@@ -0,0 +1,146 @@
+package phantast;
+
+import ij.process.BinaryProcessor;
+import ij.process.ByteProcessor;
+
+/**
+ * Halo correction of PHANTAST, working on flat byte arrays.
+ * <p>
+ * Starting from the outline of the objects, pixels are followed inwards along the cone of
+ * directions given by the Kirsch direction image, and every pixel from which the path could
+ * continue is removed from the mask. Pixels are stored as linear indices (y*width+x) in
+ * primitive int queues, and the visited flags are kept in a byte array, so that the loop
+ * does not allocate anything per pixel. The propagation rules, including the border checks
+ * and the fact that the first pixel of every removal batch is kept, are the ones of the
+ * original implementation, and the resulting masks are identical.
+ */
+public class HaloCorrection {
+
+	/**
+	 * Shrinks the objects of the mask in place.
+	 * @param mask the mask, 255 for objects and 0 for background, row by row
+	 * @param directions the index (0 to 7) of the strongest Kirsch kernel for every pixel
+	 * @param width the image width
+	 * @param height the image height
+	 * @return the number of pixels removed from the objects
+	 */
+	public static int apply(byte[] mask, byte[] directions, int width, int height) {
+		return apply(mask, directions, width, height, new byte[width*height]);
+	}
+
+	/**
+	 * @param visited scratch array of the size of the mask, its contents do not matter
+	 * @see #apply(byte[], byte[], int, int)
+	 */
+	public static int apply(byte[] mask, byte[] directions, int width, int height, byte[] visited) {
+		java.util.Arrays.fill(visited, (byte) 0);
+		return shrink(outlinePixels(mask, width, height), mask, directions, width, height, visited);
+	}
+
+	/**
+	 * Propagation loop, starting from the given pixels
+	 * @param consideredAsStartingPoint flags of the visited pixels, all 0
+	 * @return the number of pixels removed from the objects
+	 */
+	static int shrink(IntQueue pixelsToProcess, byte[] mask, byte[] directions, int width, int height, byte[] consideredAsStartingPoint) {
+		IntQueue toAddToQueue = new IntQueue(pixelsToProcess.size());
+		final IntQueue toBeRemoved = new IntQueue(pixelsToProcess.size());
+
+		final int[][] projectionCones = PhantastEngine.projectionCones;
+		final int[][] directionOffsets = PhantastEngine.directionOffsets;
+		int removed = 0;
+
+		while(pixelsToProcess.size() > 0) {
+			toAddToQueue.clear();
+			toBeRemoved.clear();
+
+			for(int i = 0; i < pixelsToProcess.size(); i++) {
+				final int current = pixelsToProcess.get(i);
+				final int x = current % width;
+				final int y = current / width;
+				final int[] cone = projectionCones[directions[current]];
+				boolean validPath = false;
+
+				if(consideredAsStartingPoint[current] == 0 && x > 0 && y > 0 && x < width-1 && y < height-1) {
+					consideredAsStartingPoint[current] = 1;
+
+					for(int k = 0; k < 3; k++) {
+						final int[] offset = directionOffsets[cone[k]-1];
+						final int nx = x + offset[0];
+						final int ny = y + offset[1];
+						final int next = ny*width + nx;
+
+						if((mask[next] & 0xff) == 255 && nx >= 1 && ny >= 1 && nx <= width && ny <= height) {
+							validPath = true;
+							toAddToQueue.add(next);
+						}
+					}
+				}
+
+				if(validPath) toBeRemoved.add(current);
+			}
+
+			// The first pixel of the batch has always been kept
+			// A pixel can be reached more than once, only count it the first time
+			for(int j = 1; j < toBeRemoved.size(); j++) {
+				final int pixel = toBeRemoved.get(j);
+				if(mask[pixel] != 0) {
+					mask[pixel] = 0;
+					removed++;
+				}
+			}
+
+			final IntQueue processed = pixelsToProcess;
+			pixelsToProcess = toAddToQueue;
+			toAddToQueue = processed;
+		}
+		return removed;
+	}
+
+	/**
+	 * Indices of the outline pixels of the objects, in row order.
+	 * The outline is computed by ImageJ, as it always has been.
+	 */
+	static IntQueue outlinePixels(byte[] mask, int width, int height) {
+		final BinaryProcessor binaryProc = new BinaryProcessor(new ByteProcessor(width, height, mask.clone()));
+		binaryProc.invert();
+		binaryProc.outline();
+		binaryProc.invert();
+
+		final byte[] outline = (byte[]) binaryProc.getPixels();
+		final IntQueue pixels = new IntQueue(1024);
+		for(int i = 0; i < outline.length; i++) {
+			if((outline[i] & 0xff) == 255) pixels.add(i);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Growable list of ints, kept between iterations to avoid reallocations.
+	 */
+	static class IntQueue {
+		private int[] values;
+		private int size;
+
+		IntQueue(int capacity) {
+			values = new int[Math.max(16, capacity)];
+		}
+
+		void add(int value) {
+			if(size == values.length) values = java.util.Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package phantast;
+
+import ij.ImagePlus;
+
+/**
+ * The planes of a hyperstack to segment, with their channel, slice (Z) and frame (T).
+ * <p>
+ * Only the planes of the phase contrast channel are kept when one is given, so that the
+ * fluorescence channels of a multichannel acquisition are not segmented. Planes are ordered by
+ * channel, then by slice, then by frame, so that consecutive planes are consecutive time points
+ * of the same channel and focal plane, as {@link TimeLapseSegmenter} expects. Stack indices follow the default
+ * czt order of ImageJ hyperstacks, and plain stacks are a single channel and slice.
+ */
+public class HyperstackPlanes {
+
+	private final int nChannels;
+	private final int nSlices;
+	private final int nFrames;
+	private final int channel; // 0 for all channels
+
+	/**
+	 * @param channel the channel to segment, from 1, or 0 for all channels
+	 */
+	public HyperstackPlanes(int nChannels, int nSlices, int nFrames, int channel) {
+		if(channel < 0 || channel > nChannels) throw new IllegalArgumentException("No channel "+channel+" in "+nChannels+" channels");
+		this.nChannels = Math.max(1, nChannels);
+		this.nSlices = Math.max(1, nSlices);
+		this.nFrames = Math.max(1, nFrames);
+		this.channel = channel;
+	}
+
+	/**
+	 * Planes of an image, all of them if the channel is 0 or the image has a single channel
+	 */
+	public static HyperstackPlanes of(ImagePlus imp, int channel) {
+		final int nChannels = imp.getNChannels();
+		final int nSlices = imp.getNSlices();
+		final int nFrames = imp.getNFrames();
+		if(nChannels*nSlices*nFrames != imp.getStackSize()) {
+			// Dimensions not set consistently, seen as a plain stack
+			return new HyperstackPlanes(1, imp.getStackSize(), 1, 0);
+		}
+		return new HyperstackPlanes(nChannels, nSlices, nFrames, nChannels > 1 ? Math.min(channel, nChannels) : 0);
+	}
+
+	/**
+	 * @return the number of planes to segment
+	 */
+	public int size() {
+		return getOutputChannels() * nSlices * nFrames;
+	}
+
+	public int getChannel(int plane) {
+		return channel > 0 ? channel : plane / (nSlices * nFrames) + 1;
+	}
+
+	public int getSlice(int plane) {
+		return plane / nFrames % nSlices + 1;
+	}
+
+	public int getFrame(int plane) {
+		return plane % nFrames + 1;
+	}
+
+	/**
+	 * @return the index in the stack, from 1, of a plane
+	 */
+	public int getStackIndex(int plane) {
+		return (getFrame(plane)-1)*nChannels*nSlices + (getSlice(plane)-1)*nChannels + getChannel(plane);
+	}
+
+	/**
+	 * @return the index of a plane, from 1, in a stack of the planes alone in the czt order of
+	 * hyperstacks, with {@link #getOutputChannels()} channels, e.g. the stack of the masks
+	 */
+	public int getOutputIndex(int plane) {
+		final int outputChannels = getOutputChannels();
+		return ((getFrame(plane)-1)*nSlices + getSlice(plane)-1)*outputChannels + (channel > 0 ? 1 : getChannel(plane));
+	}
+
+	/**
+	 * @return the number of channels segmented, 1 when only the phase contrast channel is
+	 */
+	public int getOutputChannels() {
+		return channel > 0 ? 1 : nChannels;
+	}
+
+	/**
+	 * @return the indices in the stack, from 1, of all planes, in order
+	 */
+	public int[] getStackIndices() {
+		final int[] indices = new int[size()];
+		for(int plane = 0; plane < indices.length; plane++) indices[plane] = getStackIndex(plane);
+		return indices;
+	}
+
+	/**
+	 * Whether the image has more than one channel, slice or frame dimension, i.e. whether the positions
+	 * of the planes need more than a slice number
+	 */
+	public boolean isHyperstack() {
+		return nChannels > 1 || (nSlices > 1 && nFrames > 1);
+	}
+
+	public int getNSlices() {
+		return nSlices;
+	}
+
+	public int getNFrames() {
+		return nFrames;
+	}
+}
@@ -0,0 +1,113 @@
+package phantast;
+
+/**
+ * Direction image of PHANTAST: for every pixel, the index (0 to 7) of the Kirsch compass kernel
+ * with the strongest response.
+ * <p>
+ * The eight responses are evaluated from a single read of the 3x3 neighbourhood and the argmax
+ * is written straight into a byte array, instead of convolving eight copies of the image. The
+ * arithmetic follows ImageJ's Convolver (float products summed as double, replicated borders),
+ * and ties go to the first kernel, so the output is the same as with ImageProcessor.convolve.
+ * Rows are independent, so the image can be split into bands processed by several threads.
+ */
+public class KirschDirection {
+
+	/** The Kirsch compass kernels, 3x3 row by row, starting with East and turning counter-clockwise */
+	static final float[][] KERNELS = new float[][] {
+		{-3,-3,5,-3,0,5,-3,-3,5},
+		{-3,5,5,-3,0,5,-3,-3,-3},
+		{5,5,5,-3,0,-3,-3,-3,-3},
+		{5,5,-3,5,0,-3,-3,-3,-3},
+		{5,-3,-3,5,0,-3,5,-3,-3},
+		{-3,-3,-3,5,0,-3,5,5,-3},
+		{-3,-3,-3,-3,0,-3,5,5,5},
+		{-3,-3,-3,-3,0,5,-3,5,5}};
+
+	/**
+	 * Computes the direction image on the calling thread.
+	 * @param pixels the image, row by row
+	 * @param width the image width
+	 * @param height the image height
+	 * @param directions receives the index of the strongest kernel for every pixel
+	 */
+	public static void apply(float[] pixels, int width, int height, byte[] directions) {
+		computeRows(pixels, width, height, directions, 0, height);
+	}
+
+	/**
+	 * Computes the direction image, splitting the rows into one band per thread.
+	 */
+	public static void apply(final float[] pixels, final int width, final int height, final byte[] directions, int nThreads) {
+		nThreads = Math.max(1, Math.min(nThreads, height));
+		if(nThreads == 1) {
+			apply(pixels, width, height, directions);
+			return;
+		}
+
+		final Thread[] threads = new Thread[nThreads];
+		for(int t = 0; t < nThreads; t++) {
+			final int y0 = (int) ((long) height * t / nThreads);
+			final int y1 = (int) ((long) height * (t+1) / nThreads);
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					computeRows(pixels, width, height, directions, y0, y1);
+				}
+			}, "Kirsch-"+t);
+			threads[t].start();
+		}
+
+		try {
+			for(Thread thread : threads) thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Computes the rows [y0, y1) of the direction image.
+	 */
+	public static void computeRows(float[] pixels, int width, int height, byte[] directions, int y0, int y1) {
+		computeRows(pixels, width, height, directions, y0, y1, SimdKernels.get());
+	}
+
+	/**
+	 * Computes the rows [y0, y1) of the direction image, the inner pixels of the rows being left to the given kernels.
+	 */
+	static void computeRows(float[] pixels, int width, int height, byte[] directions, int y0, int y1, SimdKernels kernels) {
+		final float[] n = new float[9];
+
+		for(int y = y0; y < y1; y++) {
+			final int above = Math.max(y-1, 0) * width;
+			final int row = y * width;
+			final int below = Math.min(y+1, height-1) * width;
+			final int inner = y > 0 && y < height-1 ? kernels.kirschInterior(pixels, width, y, directions) : 0;
+
+			for(int x = 0; x < width; x++) {
+				if(x == 1) x += inner; // Skips the pixels already written by the kernels
+				final int left = Math.max(x-1, 0);
+				final int right = Math.min(x+1, width-1);
+
+				n[0] = pixels[above+left]; n[1] = pixels[above+x]; n[2] = pixels[above+right];
+				n[3] = pixels[row+left];   n[4] = pixels[row+x];   n[5] = pixels[row+right];
+				n[6] = pixels[below+left]; n[7] = pixels[below+x]; n[8] = pixels[below+right];
+
+				float max = 0f;
+				int kernelId = 0;
+				for(int k = 0; k < 8; k++) {
+					final float[] kernel = KERNELS[k];
+					double sum = 0;
+					for(int i = 0; i < 9; i++) sum += n[i] * kernel[i];
+					final float response = (float) sum;
+
+					if(k == 0 || response > max) {
+						max = response;
+						kernelId = k;
+					}
+				}
+
+				directions[row+x] = (byte) kernelId;
+			}
+		}
+	}
+}
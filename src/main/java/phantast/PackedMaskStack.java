@@ -0,0 +1,108 @@
+package phantast;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * In-memory mask stack storing one bit per pixel, eight times smaller than an 8-bit stack.
+ * <p>
+ * Slices are unpacked into a new 8-bit processor each time they are displayed or read, so the
+ * stack can be shown and saved like any virtual stack. Slices that were not put yet are empty.
+ */
+public class PackedMaskStack extends VirtualStack implements MaskSink {
+
+	private final int width;
+	private final int height;
+	private final long[][] slices;
+	private final boolean invertedLut;
+	private int size; // Slices in use at the start of the array, fewer than its length after deletions
+
+	/**
+	 * @param invertedLut whether the slices are displayed with an inverted LUT, i.e. cells in black
+	 */
+	public PackedMaskStack(int width, int height, int nSlices, boolean invertedLut) {
+		super(width, height, null, null);
+		this.width = width;
+		this.height = height;
+		this.slices = new long[nSlices][];
+		this.size = nSlices;
+		this.invertedLut = invertedLut;
+		setBitDepth(8);
+	}
+
+	@Override
+	public void put(int slice, byte[] mask) {
+		final long[] bits = new long[(mask.length + 63) >>> 6];
+		for(int i = 0; i < mask.length; i++) {
+			if(mask[i] != 0) bits[i >>> 6] |= 1L << (i & 63);
+		}
+		synchronized(slices) {
+			slices[slice-1] = bits;
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		final long[] bits;
+		synchronized(slices) {
+			bits = slices[n-1];
+		}
+
+		final byte[] pixels = new byte[width*height];
+		if(bits != null) {
+			for(int i = 0; i < pixels.length; i++) {
+				if((bits[i >>> 6] & (1L << (i & 63))) != 0) pixels[i] = (byte) 255;
+			}
+		}
+
+		final ByteProcessor ip = new ByteProcessor(width, height, pixels);
+		if(invertedLut) ip.invertLut();
+		return ip;
+	}
+
+	@Override
+	public int getSize() {
+		synchronized(slices) {
+			return size;
+		}
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public void setPixels(Object pixels, int n) {
+		put(n, (byte[]) pixels);
+	}
+
+	/**
+	 * Removes a slice, the following slices move down by one. Slices put afterwards use the new numbering.
+	 */
+	@Override
+	public void deleteSlice(int n) {
+		synchronized(slices) {
+			if(n < 1 || n > size) throw new IllegalArgumentException("Argument out of range: "+n);
+			System.arraycopy(slices, n, slices, n-1, size-n);
+			slices[--size] = null;
+		}
+	}
+
+	@Override
+	public void deleteLastSlice() {
+		synchronized(slices) {
+			if(size > 0) deleteSlice(size);
+		}
+	}
+}
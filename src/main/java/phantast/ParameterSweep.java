@@ -0,0 +1,123 @@
+package phantast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Confluency of an image for every combination of a list of sigmas and a list of epsilons,
+ * to validate the parameters on a new cell line.
+ * <p>
+ * Only the local contrast depends on sigma, so its two Gaussians are computed once per sigma,
+ * and every epsilon is thresholded off the same local contrast image. The direction image of the
+ * halo correction depends on neither parameter and is computed once for the whole grid. A grid of
+ * N sigmas and M epsilons then costs N local contrast filters and N*M cleaning stages, instead of
+ * N*M full runs. The other parameters, such as the size filters and the tile size, are the same for
+ * every combination. Several threads can sweep different images with the same object.
+ */
+public class ParameterSweep {
+
+	private final double[] sigmas;
+	private final double[] epsilons;
+	private final PhantastEngine[] contrastEngines; // One per sigma
+	private final PhantastEngine[] cleaningEngines; // One per epsilon
+
+	/**
+	 * @param parameters the parameters shared by all combinations, colonies are not measured
+	 */
+	public ParameterSweep(PhantastParameters parameters, double[] sigmas, double[] epsilons) {
+		if(sigmas.length == 0 || epsilons.length == 0) throw new IllegalArgumentException("At least one sigma and one epsilon are needed");
+		this.sigmas = sigmas.clone();
+		this.epsilons = epsilons.clone();
+
+		contrastEngines = new PhantastEngine[sigmas.length];
+		for(int s = 0; s < sigmas.length; s++) {
+			contrastEngines[s] = new PhantastEngine(parameters.copy().setSigma(sigmas[s]).setMeasureColonies(false));
+		}
+		cleaningEngines = new PhantastEngine[epsilons.length];
+		for(int e = 0; e < epsilons.length; e++) {
+			cleaningEngines[e] = new PhantastEngine(parameters.copy().setEpsilon(epsilons[e]).setMeasureColonies(false));
+		}
+	}
+
+	public double[] getSigmas() {
+		return sigmas.clone();
+	}
+
+	public double[] getEpsilons() {
+		return epsilons.clone();
+	}
+
+	/**
+	 * @param timer records the time spent in every stage, see {@link StageTimer}
+	 */
+	public void setStageTimer(StageTimer timer) {
+		for(PhantastEngine engine : contrastEngines) engine.setStageTimer(timer);
+		for(PhantastEngine engine : cleaningEngines) engine.setStageTimer(timer);
+	}
+
+	/**
+	 * @param pool keeps the scratch arrays of the engines between slices, see {@link PhantastEngine#setBufferPool(BufferPool)}
+	 */
+	public void setBufferPool(BufferPool pool) {
+		for(PhantastEngine engine : contrastEngines) engine.setBufferPool(pool);
+		for(PhantastEngine engine : cleaningEngines) engine.setBufferPool(pool);
+	}
+
+	/**
+	 * Segments an image for every combination of the parameters.
+	 * @param ip the image to segment, left untouched
+	 * @return the confluencies, indexed by sigma then by epsilon
+	 */
+	public double[][] confluency(ImageProcessor ip) {
+		final byte[] directions = contrastEngines[0].getParameters().isHaloCorrection() ? contrastEngines[0].computeDirections(ip) : null;
+		return confluency(ip, directions);
+	}
+
+	/**
+	 * Segments an image for every combination of the parameters, with a known direction image.
+	 * @param directions the direction image of the slice, or null to skip the halo correction
+	 * @return the confluencies, indexed by sigma then by epsilon
+	 */
+	public double[][] confluency(ImageProcessor ip, byte[] directions) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final double[][] confluency = new double[sigmas.length][epsilons.length];
+		for(int s = 0; s < sigmas.length; s++) {
+			final float[] localContrast = contrastEngines[s].computeLocalContrast(ip);
+			for(int e = 0; e < epsilons.length; e++) {
+				confluency[s][e] = cleaningEngines[e].segment(localContrast, directions, width, height).getConfluency();
+			}
+		}
+		return confluency;
+	}
+
+	/**
+	 * Reads a list of values, either separated by commas ("0.02,0.03,0.05") or as a range with
+	 * a step ("0.01:0.1:0.01", both ends included).
+	 */
+	public static double[] parseValues(String text) {
+		final List<Double> values = new ArrayList<Double>();
+		if(text.indexOf(':') >= 0) {
+			final String[] range = text.split(":");
+			if(range.length != 3) throw new IllegalArgumentException("A range must be given as first:last:step, not "+text);
+			final double first = Double.parseDouble(range[0].trim());
+			final double last = Double.parseDouble(range[1].trim());
+			final double step = Double.parseDouble(range[2].trim());
+			if(!(step > 0)) throw new IllegalArgumentException("The step of a range must be positive, not "+text);
+			// Counted rather than accumulated, so that rounding does not drop the last value
+			final long n = (long) Math.floor((last - first) / step + 1e-9);
+			for(long k = 0; k <= n; k++) values.add(first + k*step);
+		} else {
+			for(String value : text.split(",")) {
+				if(!value.trim().isEmpty()) values.add(Double.parseDouble(value.trim()));
+			}
+		}
+		if(values.isEmpty()) throw new IllegalArgumentException("No values in "+text);
+
+		final double[] array = new double[values.size()];
+		for(int k = 0; k < array.length; k++) array[k] = values.get(k);
+		return array;
+	}
+}
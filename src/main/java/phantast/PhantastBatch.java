@@ -0,0 +1,483 @@
+package phantast;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+/**
+ * Command line batch runner, segmenting every TIFF of a directory without starting ImageJ.
+ * <p>
+ * Images are processed on a pool of worker threads sharing one {@link PhantastEngine}, and
+ * the confluency of every slice is appended to the CSV file as soon as its image is done,
+ * so rows are not sorted. Images are started by a {@link PlateScheduler}, so that the images
+ * processed at the same time fit the memory budget. Usage:
+ * <pre>
+ * java -cp PHANTAST_.jar:ij.jar:... phantast.PhantastBatch [options] input-directory output.csv
+ *   --sigma 1.2          standard deviation of the local contrast Gaussian
+ *   --epsilon 0.03       local contrast threshold
+ *   --no-halo            skip the halo correction
+ *   --min-object 100     smallest object area kept, in pixels
+ *   --min-hole 25        smallest hole area kept, in pixels
+ *   --tile 0             tile size for the local filters, 0 for whole images
+ *   --gaussian exact     exact, recursive, or auto to use the recursive Gaussian for large sigmas
+ *   --threads N          number of worker threads, defaults to the number of processors
+ *   --memory MB          memory budget of the images processed at the same time, defaults to 3/4 of the maximum heap
+ *   --buffer-pool MB     scratch arrays kept by each thread for the next images of the same size, 0 to keep none,
+ *                        defaults to 256 MB or less, so that all threads keep at most 1/4 of the maximum heap
+ *   --wells file         also write the confluency of every well, read from the file names, to this CSV file
+ *   --well-pattern regex pattern of the well names, the first group is the row and the second the column
+ *   --masks directory    also save the masks as TIFF files in this directory, in the subdirectories of the images
+ *   --time-lapse t       segment the slices of each stack incrementally, reusing the tiles that changed by at most t
+ *   --epsilon-curve file also write the thresholded coverage versus epsilon of every slice to this CSV file
+ *   --colonies file      also write the area, perimeter, centroid and bounding box of every colony to this CSV file
+ *   --sweep file         also write the confluency of every slice for each sigma and epsilon of the lists below to this CSV file
+ *   --sweep-sigma list   sigmas of the sweep, as "1,1.2,2" or "first:last:step", defaults to --sigma
+ *   --sweep-epsilon list epsilons of the sweep, as "0.02,0.03" or "first:last:step", defaults to --epsilon
+ * </pre>
+ * The epsilon curves come from the histogram of the local contrast of each slice, see {@link ContrastHistogram}.
+ * The sweep shares the local filters between the combinations, see {@link ParameterSweep}.
+ */
+public class PhantastBatch {
+
+	private final PhantastEngine engine;
+	private final int nThreads;
+	private final File maskDirectory;
+	private Path inputDirectory;
+	private Path curveFile;
+	private Path colonyFile;
+	private ParameterSweep sweep;
+	private Path sweepFile;
+	private double changeTolerance = -1; // Time-lapse mode when >= 0
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+	private BufferPool pool = BufferPool.NONE;
+	private Path wellFile;
+	private Pattern wellPattern = PlateScheduler.WELL;
+	private final Map<String, WellTotals> wells = new TreeMap<String, WellTotals>();
+
+	private Writer csv;
+	private Writer curves;
+	private Writer colonies;
+	private Writer sweeps;
+	private final AtomicInteger processed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger reusedTiles = new AtomicInteger();
+	private final AtomicInteger totalTiles = new AtomicInteger();
+
+	public PhantastBatch(PhantastParameters parameters, int nThreads, File maskDirectory) {
+		this.engine = new PhantastEngine(parameters);
+		this.nThreads = nThreads;
+		this.maskDirectory = maskDirectory;
+	}
+
+	/**
+	 * Also writes the coverage versus epsilon curve of every slice to a CSV file
+	 */
+	public void setEpsilonCurveFile(Path curveFile) {
+		this.curveFile = curveFile;
+	}
+
+	/**
+	 * Also writes the measurements of every colony to a CSV file. The parameters must measure the
+	 * colonies, see {@link PhantastParameters#setMeasureColonies(boolean)}.
+	 */
+	public void setColonyFile(Path colonyFile) {
+		this.colonyFile = colonyFile;
+	}
+
+	/**
+	 * Also writes the confluency of every slice for all the combinations of a parameter sweep to a CSV file
+	 */
+	public void setSweep(ParameterSweep sweep, Path sweepFile) {
+		this.sweep = sweep;
+		this.sweepFile = sweepFile;
+		if(sweep != null) sweep.setBufferPool(pool);
+	}
+
+	/**
+	 * Reuses the scratch arrays of the segmentation between images, each thread keeping at most the
+	 * capacity of the pool. The arrays kept are taken out of the memory budget, and the capacity is
+	 * lowered if they would take more than half of it.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.pool = pool != null ? pool : BufferPool.NONE;
+		engine.setBufferPool(this.pool);
+		if(sweep != null) sweep.setBufferPool(this.pool);
+	}
+
+	/**
+	 * @param memoryBudget bytes that the images processed at the same time may use, see {@link PlateScheduler}
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Also writes the confluency of every well to a CSV file, the wells being read from the file names
+	 * @param wellPattern pattern of the well names, see {@link PlateScheduler#wellOf(Path, Pattern)}, or null for the default
+	 */
+	public void setWellFile(Path wellFile, Pattern wellPattern) {
+		this.wellFile = wellFile;
+		this.wellPattern = wellPattern != null ? wellPattern : PlateScheduler.WELL;
+	}
+
+	/**
+	 * Segments the slices of each stack in order with a {@link TimeLapseSegmenter}, which only recomputes
+	 * the tiles that changed since the previous slice. Not used for the images whose epsilon curve is written.
+	 * @param changeTolerance largest pixel difference considered as no change
+	 */
+	public void setTimeLapse(double changeTolerance) {
+		this.changeTolerance = changeTolerance;
+	}
+
+	/**
+	 * Segments every TIFF below the input directory and writes the confluencies to the CSV file.
+	 * @return the number of images that could not be processed
+	 */
+	public int run(Path inputDirectory, Path csvFile) throws IOException, InterruptedException {
+		final List<Path> images = listImages(inputDirectory);
+		this.inputDirectory = inputDirectory;
+		if(maskDirectory != null) maskDirectory.mkdirs();
+
+		csv = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8);
+		if(curveFile != null) {
+			curves = Files.newBufferedWriter(curveFile, StandardCharsets.UTF_8);
+			curves.write("File,Slice,Epsilon,Coverage\n");
+		}
+		if(colonyFile != null) {
+			colonies = Files.newBufferedWriter(colonyFile, StandardCharsets.UTF_8);
+			colonies.write("File,Slice,Colony,Area,Perimeter,X,Y,BX,BY,Width,Height\n");
+		}
+		if(sweep != null) {
+			sweeps = Files.newBufferedWriter(sweepFile, StandardCharsets.UTF_8);
+			sweeps.write("File,Slice,Sigma,Epsilon,Confluency\n");
+		}
+		try {
+			csv.write("File,Slice,Width,Height,Confluency\n");
+
+			// The arrays kept by the threads between images are not part of the working set of any image,
+			// they may take at most half of the budget so that the fields still run side by side
+			if(nThreads*pool.getCapacity() > memoryBudget/2) {
+				final long capacity = Math.max(0, memoryBudget/2/nThreads);
+				System.err.println("Warning: "+nThreads+" threads keeping "+(pool.getCapacity() >> 20)+" MB of buffers each exceed half of the "
+						+(memoryBudget >> 20)+" MB memory budget, buffers are limited to "+(capacity >> 20)+" MB per thread");
+				setBufferPool(new BufferPool(capacity));
+			}
+			final PlateScheduler scheduler = new PlateScheduler(engine.getParameters(), nThreads, memoryBudget - nThreads*pool.getCapacity());
+			scheduler.run(images, new PlateScheduler.FieldProcessor() {
+				@Override
+				public void process(Path image) {
+					PhantastBatch.this.process(image);
+					final int done = processed.incrementAndGet();
+					if(done % 100 == 0) System.err.println(done+"/"+images.size()+" images");
+				}
+			});
+			System.err.println("Peak estimated working set "+(scheduler.getPeakReserved() >> 20)+" MB of "+(memoryBudget >> 20)+" MB");
+
+			if(wellFile != null) writeWells();
+		} finally {
+			pool.clear();
+			csv.close();
+			if(curves != null) curves.close();
+			if(colonies != null) colonies.close();
+			if(sweeps != null) sweeps.close();
+		}
+
+		return failed.get();
+	}
+
+	static List<Path> listImages(Path directory) throws IOException {
+		try(Stream<Path> files = Files.walk(directory)) {
+			return files
+					.filter(Files::isRegularFile)
+					.filter(p -> {
+						String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
+						return name.endsWith(".tif") || name.endsWith(".tiff");
+					})
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Segments all slices of one image. Failures are reported and do not stop the batch.
+	 */
+	void process(Path path) {
+		try {
+			final ImagePlus imp = new Opener().openImage(path.toString());
+			if(imp == null) throw new IOException("cannot open image");
+			if(imp.getBitDepth() == 24) throw new IOException("RGB images are not supported");
+
+			final ImageStack stack = imp.getStack();
+			final StringBuilder rows = new StringBuilder();
+			final StringBuilder curveRows = new StringBuilder();
+			final StringBuilder colonyRows = new StringBuilder();
+			final StringBuilder sweepRows = new StringBuilder();
+			final WellTotals field = wellFile != null ? new WellTotals() : null;
+			final TimeLapseSegmenter segmenter = changeTolerance >= 0 ? new TimeLapseSegmenter(engine, changeTolerance) : null;
+			for(int slice = 1; slice <= stack.getSize(); slice++) {
+				final ImageProcessor ip = stack.getProcessor(slice);
+				final PhantastResult result;
+				if(curves != null) {
+					// The local contrast is kept for the histogram, and only computed once
+					final float[] localContrast = engine.computeLocalContrast(ip);
+					final byte[] directions = engine.getParameters().isHaloCorrection() ? engine.computeDirections(ip) : null;
+					result = engine.segment(localContrast, directions, ip.getWidth(), ip.getHeight());
+
+					final ContrastHistogram histogram = new ContrastHistogram(localContrast);
+					final double[] epsilons = histogram.epsilons();
+					final double[] coverages = histogram.coverages();
+					for(int k = 0; k < epsilons.length; k++) {
+						curveRows.append(csvField(path.toString())).append(',')
+							.append(slice).append(',')
+							.append((float) epsilons[k]).append(',')
+							.append(coverages[k]).append('\n');
+					}
+				} else if(segmenter != null) {
+					result = segmenter.segment(ip);
+				} else {
+					result = engine.segment(ip);
+				}
+				rows.append(csvField(path.toString())).append(',')
+					.append(slice).append(',')
+					.append(result.getWidth()).append(',')
+					.append(result.getHeight()).append(',')
+					.append(result.getConfluency()).append('\n');
+				if(field != null) field.add(result);
+
+				final ColonyMeasurements measurements = result.getColonies();
+				if(colonies != null && measurements != null) {
+					for(int k = 0; k < measurements.size(); k++) {
+						colonyRows.append(csvField(path.toString())).append(',')
+							.append(slice).append(',')
+							.append(k+1).append(',')
+							.append(measurements.getArea(k)).append(',')
+							.append(measurements.getPerimeter(k)).append(',')
+							.append((float) measurements.getXCentroid(k)).append(',')
+							.append((float) measurements.getYCentroid(k)).append(',')
+							.append(measurements.getX(k)).append(',')
+							.append(measurements.getY(k)).append(',')
+							.append(measurements.getWidth(k)).append(',')
+							.append(measurements.getHeight(k)).append('\n');
+					}
+				}
+
+				if(sweeps != null) {
+					final double[][] confluency = sweep.confluency(ip);
+					final double[] sigmas = sweep.getSigmas();
+					final double[] epsilons = sweep.getEpsilons();
+					for(int s = 0; s < sigmas.length; s++) {
+						for(int e = 0; e < epsilons.length; e++) {
+							sweepRows.append(csvField(path.toString())).append(',')
+								.append(slice).append(',')
+								.append((float) sigmas[s]).append(',')
+								.append((float) epsilons[e]).append(',')
+								.append(confluency[s][e]).append('\n');
+						}
+					}
+				}
+
+				if(maskDirectory != null) saveMask(path, slice, stack.getSize(), result);
+			}
+
+			synchronized(csv) {
+				csv.write(rows.toString());
+				csv.flush();
+			}
+			if(field != null) addToWell(PlateScheduler.wellOf(path, wellPattern), field);
+			if(segmenter != null) {
+				reusedTiles.addAndGet(segmenter.getReusedTiles());
+				totalTiles.addAndGet(segmenter.getTotalTiles());
+			}
+			if(curves != null) {
+				synchronized(curves) {
+					curves.write(curveRows.toString());
+					curves.flush();
+				}
+			}
+			if(colonies != null) {
+				synchronized(colonies) {
+					colonies.write(colonyRows.toString());
+					colonies.flush();
+				}
+			}
+			if(sweeps != null) {
+				synchronized(sweeps) {
+					sweeps.write(sweepRows.toString());
+					sweeps.flush();
+				}
+			}
+		} catch(Exception e) {
+			failed.incrementAndGet();
+			System.err.println(path+": "+e);
+		}
+	}
+
+	/**
+	 * Adds the totals of a field that was processed without errors to its well
+	 */
+	private void addToWell(String well, WellTotals field) {
+		synchronized(wells) {
+			final WellTotals totals = wells.get(well);
+			if(totals == null) wells.put(well, field);
+			else totals.add(field);
+		}
+	}
+
+	/**
+	 * Writes the wells in order, with the confluency of all their pixels, and the range of their slices
+	 */
+	private void writeWells() throws IOException {
+		try(Writer out = Files.newBufferedWriter(wellFile, StandardCharsets.UTF_8)) {
+			out.write("Well,Fields,Slices,Confluency,Min,Max\n");
+			synchronized(wells) {
+				for(Map.Entry<String, WellTotals> well : wells.entrySet()) {
+					final WellTotals totals = well.getValue();
+					out.write(csvField(well.getKey())+","+totals.fields+","+totals.slices+","
+							+(totals.objectPixels / totals.pixels)+","+totals.min+","+totals.max+"\n");
+				}
+			}
+		}
+	}
+
+	/** Confluency totals of one field or well */
+	private static class WellTotals {
+		int fields = 1;
+		int slices;
+		double pixels;
+		double objectPixels;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		void add(PhantastResult slice) {
+			final double sliceArea = (double) slice.getWidth() * slice.getHeight();
+			slices++;
+			pixels += sliceArea;
+			objectPixels += slice.getConfluency() * sliceArea;
+			min = Math.min(min, slice.getConfluency());
+			max = Math.max(max, slice.getConfluency());
+		}
+
+		void add(WellTotals other) {
+			fields += other.fields;
+			slices += other.slices;
+			pixels += other.pixels;
+			objectPixels += other.objectPixels;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+	}
+
+	/**
+	 * Saves a mask in the same subdirectory of the mask directory as the image is in the input
+	 * directory, so that fields with the same name in different wells or plates are kept apart.
+	 */
+	private void saveMask(Path path, int slice, int nSlices, PhantastResult result) {
+		final Path relative = inputDirectory.relativize(path);
+		final File directory = relative.getParent() != null ? new File(maskDirectory, relative.getParent().toString()) : maskDirectory;
+		directory.mkdirs();
+		String name = path.getFileName().toString().replaceFirst("(?i)\\.tiff?$", "");
+		if(nSlices > 1) name += "-"+slice;
+		new FileSaver(new ImagePlus(name, result.toProcessor())).saveAsTiff(new File(directory, name+"-mask.tif").getPath());
+	}
+
+	static String csvField(String value) {
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+		return "\""+value.replace("\"", "\"\"")+"\"";
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		final PhantastParameters parameters = new PhantastParameters();
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		File masks = null;
+		Path curveFile = null;
+		Path colonyFile = null;
+		double changeTolerance = -1;
+		long memoryBudget = -1;
+		long poolCapacity = -1;
+		Path wellFile = null;
+		Pattern wellPattern = null;
+		Path sweepFile = null;
+		String sweepSigmas = null;
+		String sweepEpsilons = null;
+		final List<String> positional = new ArrayList<String>();
+
+		for(int i = 0; i < args.length; i++) {
+			switch(args[i]) {
+				case "--sigma":      parameters.setSigma(Double.parseDouble(args[++i])); break;
+				case "--epsilon":    parameters.setEpsilon(Double.parseDouble(args[++i])); break;
+				case "--no-halo":    parameters.setHaloCorrection(false); break;
+				case "--min-object": parameters.setMinObjectSize(Double.parseDouble(args[++i])); break;
+				case "--min-hole":   parameters.setMinHoleSize(Double.parseDouble(args[++i])); break;
+				case "--tile":       parameters.setTileSize(Integer.parseInt(args[++i])); break;
+				case "--gaussian":   parameters.setGaussianMethod(LocalContrastFilter.GaussianMethod.valueOf(args[++i].toUpperCase(Locale.ROOT))); break;
+				case "--memory":     memoryBudget = Long.parseLong(args[++i]) << 20; break;
+				case "--buffer-pool": poolCapacity = Math.max(0, Long.parseLong(args[++i])) << 20; break;
+				case "--wells":      wellFile = Paths.get(args[++i]); break;
+				case "--well-pattern": wellPattern = Pattern.compile(args[++i]); break;
+				case "--threads":    nThreads = Math.max(1, Integer.parseInt(args[++i])); break;
+				case "--masks":      masks = new File(args[++i]); break;
+				case "--epsilon-curve": curveFile = Paths.get(args[++i]); break;
+				case "--colonies":   colonyFile = Paths.get(args[++i]); parameters.setMeasureColonies(true); break;
+				case "--sweep":      sweepFile = Paths.get(args[++i]); break;
+				case "--sweep-sigma": sweepSigmas = args[++i]; break;
+				case "--sweep-epsilon": sweepEpsilons = args[++i]; break;
+				case "--time-lapse": changeTolerance = Math.max(0, Double.parseDouble(args[++i])); break;
+				default:
+					if(args[i].startsWith("--")) usage("Unknown option "+args[i]);
+					positional.add(args[i]);
+			}
+		}
+		if(positional.size() != 2) usage(null);
+
+		final PhantastBatch batch = new PhantastBatch(parameters, nThreads, masks);
+		batch.setEpsilonCurveFile(curveFile);
+		batch.setColonyFile(colonyFile);
+		batch.setWellFile(wellFile, wellPattern);
+		if(sweepFile != null) {
+			final double[] sigmas = sweepSigmas != null ? ParameterSweep.parseValues(sweepSigmas) : new double[] {parameters.getSigma()};
+			final double[] epsilons = sweepEpsilons != null ? ParameterSweep.parseValues(sweepEpsilons) : new double[] {parameters.getEpsilon()};
+			batch.setSweep(new ParameterSweep(parameters, sigmas, epsilons), sweepFile);
+		} else if(sweepSigmas != null || sweepEpsilons != null) {
+			usage("--sweep-sigma and --sweep-epsilon need --sweep");
+		}
+		if(memoryBudget > 0) batch.setMemoryBudget(memoryBudget);
+		if(poolCapacity < 0) {
+			// By default the kept arrays take at most a quarter of the heap
+			poolCapacity = BufferPool.capacityFor(BufferPool.DEFAULT_CAPACITY, nThreads);
+		}
+		batch.setBufferPool(new BufferPool(poolCapacity));
+		batch.setTimeLapse(changeTolerance);
+		final int failures = batch.run(Paths.get(positional.get(0)), Paths.get(positional.get(1)));
+		System.err.println(batch.processed.get()+" images processed with "+parameters+" ("+SimdKernels.get()+" kernels), "+failures+" failed");
+		if(changeTolerance >= 0) System.err.println(batch.reusedTiles.get()+" of "+batch.totalTiles.get()+" tiles reused");
+		if(failures > 0) System.exit(1);
+	}
+
+	private static void usage(String error) {
+		if(error != null) System.err.println(error);
+		System.err.println("Usage: phantast.PhantastBatch [--sigma s] [--epsilon e] [--no-halo] [--min-object a] [--min-hole a]"
+				+" [--tile n] [--gaussian exact|recursive|auto] [--time-lapse t] [--threads n] [--memory MB] [--buffer-pool MB] [--wells file.csv] [--well-pattern regex] [--masks directory] [--epsilon-curve file.csv] [--colonies file.csv] [--sweep file.csv --sweep-sigma list --sweep-epsilon list] input-directory output.csv");
+		System.exit(2);
+	}
+}
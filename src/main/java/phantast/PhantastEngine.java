@@ -0,0 +1,408 @@
+package phantast;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import phantast.StageTimer.Stage;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+/**
+ * The PHANTAST segmentation pipeline, without any dependency on the ImageJ user interface.
+ * <p>
+ * The engine takes its settings from a {@link PhantastParameters} object rather than from
+ * dialogs or {@link ij.Prefs}, and returns the mask and confluency of each image in a
+ * {@link PhantastResult}. It can be used by the PHANTAST_ plugin, by scripts or by
+ * {@link PhantastBatch} on a headless node. A single engine can segment several images
+ * at the same time, each thread keeps its own local contrast buffers.
+ */
+@SuppressWarnings("deprecation")
+public class PhantastEngine {
+
+	static final int[][] projectionCones = new int[][] 
+	{{1, 2, 8},
+	 {2, 1, 3},
+	 {3, 2, 4},
+	 {4, 3, 5},
+	 {5, 4, 6},
+	 {6, 5, 7},
+	 {7, 6, 8},
+	 {8, 1, 7}};
+
+	static final int[][] directionOffsets= new int[][]
+	{{1,0},    //EAST 1    	
+	 {1,-1},   //NORTH EAST 2 
+	 {0,-1},   //NORTH 3
+	 {-1,-1},  //NORTH WEST 4
+	 {-1,0},   //WEST 5
+	 {-1,1},   //SOUTH WEST 6 
+	 {0,1},    //SOUTH 7
+	 {1,1}};   //SOUTH EAST 8
+
+	private final PhantastParameters parameters;
+	private StageTimer timer = StageTimer.DISABLED;
+	private BufferPool pool = BufferPool.NONE;
+
+	// Scratch buffers of the local contrast filter are reused by each thread from one image to the next
+	private final ThreadLocal<LocalContrastFilter> filters = new ThreadLocal<LocalContrastFilter>() {
+		@Override
+		protected LocalContrastFilter initialValue() {
+			return new LocalContrastFilter();
+		}
+	};
+
+	/**
+	 * @param parameters the segmentation parameters, copied so that later changes do not affect this engine
+	 */
+	public PhantastEngine(PhantastParameters parameters) {
+		this.parameters = parameters.copy();
+	}
+
+	public PhantastParameters getParameters() {
+		return parameters.copy();
+	}
+
+	/**
+	 * @param timer records the time spent in every stage, see {@link StageTimer}
+	 */
+	public void setStageTimer(StageTimer timer) {
+		this.timer = timer != null ? timer : StageTimer.DISABLED;
+	}
+
+	public StageTimer getStageTimer() {
+		return timer;
+	}
+
+	/**
+	 * @param pool keeps the scratch arrays of the slices (direction image, float tiles, labels) for the
+	 * next slices of the same size. Masks and the arrays returned by the engine are never taken from it.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.pool = pool != null ? pool : BufferPool.NONE;
+	}
+
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	/**
+	 * Segments a single 8, 16 or 32-bit image.
+	 * @param ip the image to segment, left untouched
+	 * @return the mask (objects are 255) and confluency of the image
+	 */
+	public PhantastResult segment(ImageProcessor ip) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+
+		// Local contrast thresholding and direction image, computed tile by tile if requested
+		final byte[] thresholded = new byte[width*height];
+		final byte[] directions = parameters.isHaloCorrection() ? pool.bytes(width*height) : null;
+		computeLocalFilters(ip, thresholded, directions);
+
+		final PhantastResult result = clean(thresholded, directions, width, height);
+		pool.release(directions);
+		return result;
+	}
+
+	/**
+	 * Segments an image whose local contrast and direction images are already known, for instance
+	 * when only epsilon changed. Only the threshold, the component filter and the halo correction run.
+	 * @param localContrast the local contrast image, left untouched
+	 * @param directions the direction image, or null to skip the halo correction
+	 */
+	public PhantastResult segment(float[] localContrast, byte[] directions, int width, int height) {
+		final StageTimer.Split split = timer.start();
+		final byte[] thresholded = threshold(localContrast, parameters.getEpsilon());
+		timer.stop(split, Stage.THRESHOLD);
+		return clean(thresholded, parameters.isHaloCorrection() ? directions : null, width, height);
+	}
+
+	/**
+	 * Removes the small objects and holes of a thresholded image and applies the halo correction.
+	 */
+	PhantastResult clean(byte[] thresholded, byte[] directions, int width, int height) {
+		// Object pixels are counted by the stages writing the mask, no extra pass is needed for the confluency
+		final byte[] mask = thresholded;
+		final int[] labels = pool.ints(mask.length); // Shared by the component filter and the colony measurements
+		StageTimer.Split split = timer.start();
+		int objectPixels = ComponentFilter.removeSmallObjectsAndFillHoles(mask, width, height, parameters.getMinObjectSize(), parameters.getMinHoleSize(), labels);
+		timer.stop(split, Stage.CLEANUP);
+
+		if(directions != null) {
+			split = timer.start();
+			final byte[] visited = pool.bytes(mask.length);
+			objectPixels -= HaloCorrection.apply(mask, directions, width, height, visited);
+			pool.release(visited);
+			timer.stop(split, Stage.HALO);
+		}
+
+		// Measured on the final mask, as filling holes and removing halos change the colonies
+		ColonyMeasurements colonies = null;
+		if(parameters.isMeasureColonies()) {
+			split = timer.start();
+			colonies = ColonyMeasurements.measure(mask, width, height, labels);
+			timer.stop(split, Stage.COLONIES);
+		}
+		pool.release(labels);
+
+		return new PhantastResult(width, height, mask, (double) objectPixels / mask.length, colonies);
+	}
+
+	/**
+	 * Computes the thresholded local contrast and, if needed, the Kirsch direction image of a slice.
+	 * <p>
+	 * With a tile size set, the slice is cut into tiles that are grown by the reach of the filters
+	 * (the Gaussian radius, and one pixel for the Kirsch kernels) before being converted to float,
+	 * and only the core of each tile is written out. Tiles touching the border of the slice are
+	 * clipped to it, so the mirrored and replicated borders are the same as for the whole slice, and
+	 * with the exact Gaussian, the default, the result is identical to the untiled path. The recursive
+	 * Gaussian only stays within the bound given in {@link LocalContrastFilter}. Float memory is then
+	 * bounded by the tile size.
+	 * The connected component and halo correction stages are global and run on the byte images.
+	 * @param ip the slice to process
+	 * @param thresholded receives the thresholded local contrast (0 or 255)
+	 * @param directions receives the direction image, or null if not needed
+	 */
+	public void computeLocalFilters(ImageProcessor ip, byte[] thresholded, byte[] directions) {
+		computeLocalFilters(ip, null, thresholded, directions);
+	}
+
+	/**
+	 * Computes the local contrast image of a slice, tile by tile if a tile size is set.
+	 * @return a new array, row by row
+	 */
+	public float[] computeLocalContrast(ImageProcessor ip) {
+		final float[] localContrast = new float[ip.getWidth()*ip.getHeight()];
+		computeLocalFilters(ip, localContrast, null, null);
+		return localContrast;
+	}
+
+	/**
+	 * Computes the Kirsch direction image of a slice, tile by tile if a tile size is set.
+	 * @return a new array, row by row
+	 */
+	public byte[] computeDirections(ImageProcessor ip) {
+		final byte[] directions = new byte[ip.getWidth()*ip.getHeight()];
+		computeLocalFilters(ip, null, null, directions);
+		return directions;
+	}
+
+	/**
+	 * Tiling loop shared by the local filters, any of the outputs can be null.
+	 */
+	private void computeLocalFilters(ImageProcessor ip, float[] localContrastOut, byte[] thresholded, byte[] directions) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int tile = parameters.getTileSize() > 0 ? parameters.getTileSize() : Math.max(width, height);
+
+		for(int ty = 0; ty < height; ty += tile) {
+			for(int tx = 0; tx < width; tx += tile) {
+				final Rectangle core = new Rectangle(tx, ty, Math.min(tile, width-tx), Math.min(tile, height-ty));
+				computeTile(ip, core, localContrastOut, thresholded, directions);
+			}
+		}
+	}
+
+	/**
+	 * Reach of the local filters around each pixel, i.e. the margin by which tiles are grown.
+	 * @param localContrast whether the local contrast is computed, or only the direction image
+	 */
+	int overlap(boolean localContrast) {
+		return localContrast ? Math.max(LocalContrastFilter.radius(parameters.getSigma()), 1) : 1;
+	}
+
+	/**
+	 * Part of the slice read to compute a tile: the core grown by the reach of the filters, clipped to the slice.
+	 */
+	Rectangle tileBounds(Rectangle core, int width, int height, boolean localContrast) {
+		final int overlap = overlap(localContrast);
+		final Rectangle region = new Rectangle(core);
+		region.grow(overlap, overlap);
+		return region.intersection(new Rectangle(0, 0, width, height));
+	}
+
+	/**
+	 * Computes the local filters over the core of one tile, any of the outputs can be null.
+	 */
+	void computeTile(ImageProcessor ip, Rectangle core, float[] localContrastOut, byte[] thresholded, byte[] directions) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final boolean needsLocalContrast = localContrastOut != null || thresholded != null;
+		final Rectangle bounds = tileBounds(core, width, height, needsLocalContrast);
+
+		StageTimer.Split split = timer.start();
+		final float[] pixels = PixelKernels.toFloat(ip, bounds, pool); // Only read, may be the pixels of ip
+		timer.stop(split, Stage.CONVERSION);
+
+		if(needsLocalContrast) {
+			final double epsilon = parameters.getEpsilon();
+			split = timer.start();
+			final float[] localContrast = filters.get().apply(pixels, bounds.width, bounds.height, parameters.getSigma(), parameters.getGaussianMethod());
+			timer.stop(split, Stage.LOCAL_CONTRAST);
+			split = timer.start();
+			final SimdKernels kernels = SimdKernels.get();
+			for(int y = core.y; y < core.y+core.height; y++) {
+				final int src = (y-bounds.y)*bounds.width + core.x-bounds.x;
+				final int dst = y*width + core.x;
+				if(localContrastOut != null) System.arraycopy(localContrast, src, localContrastOut, dst, core.width);
+				if(thresholded != null) kernels.threshold(localContrast, src, epsilon, thresholded, dst, core.width);
+			}
+			timer.stop(split, Stage.THRESHOLD);
+		}
+
+		if(directions != null) {
+			split = timer.start();
+			if(bounds.width == width && bounds.height == height) {
+				KirschDirection.apply(pixels, width, height, directions);
+			} else {
+				final byte[] tileDirections = pool.bytes(bounds.width*bounds.height);
+				KirschDirection.apply(pixels, bounds.width, bounds.height, tileDirections);
+				for(int y = core.y; y < core.y+core.height; y++) {
+					System.arraycopy(tileDirections, (y-bounds.y)*bounds.width + core.x-bounds.x, directions, y*width + core.x, core.width);
+				}
+				pool.release(tileDirections);
+			}
+			timer.stop(split, Stage.DIRECTIONS);
+		}
+		if(pixels != ip.getPixels()) pool.release(pixels);
+	}
+
+	/**
+	 * Thresholds a whole local contrast image.
+	 * @return a mask with 255 where the value is above the threshold and 0 elsewhere
+	 */
+	public static Img<UnsignedByteType> thresholdImage(float[] pixels, int width, int height, double thresholdValue)
+	{
+		return ArrayImgs.unsignedBytes(threshold(pixels, thresholdValue), width, height);
+	}
+
+	/**
+	 * @return a new array with 255 where the value is above the threshold and 0 elsewhere
+	 */
+	static byte[] threshold(float[] pixels, double thresholdValue)
+	{
+		final byte[] mask = new byte[pixels.length];
+		SimdKernels.get().threshold(pixels, 0, thresholdValue, mask, 0, mask.length);
+		return mask;
+	}
+
+	/**
+	 * Copies a rectangle of the processor, or returns the processor itself when the rectangle covers all of it.
+	 * The ROI and mask of the processor are left as they were.
+	 */
+	static ImageProcessor crop(ImageProcessor ip, Rectangle rect) {
+		if(rect.x == 0 && rect.y == 0 && rect.width == ip.getWidth() && rect.height == ip.getHeight()) return ip;
+
+		final Rectangle roi = ip.getRoi();
+		final ImageProcessor mask = ip.getMask();
+		ip.setRoi(rect);
+		final ImageProcessor cropped = ip.crop();
+		ip.setRoi(roi);
+		ip.setMask(mask);
+		return cropped;
+	}
+
+	/**
+	 * Correct halo artifacts, by shrinking the objects of the mask along the directions given by the Kirsch filters
+	 * @see HaloCorrection
+	 */
+	public static void haloCorrection(Img<UnsignedByteType> imgToShrink, Img<UnsignedByteType> directionImage)
+	{
+		final int width = (int) imgToShrink.dimension(0);
+		final int height = (int) imgToShrink.dimension(1);
+		final byte[] mask = toBytes(imgToShrink);
+
+		HaloCorrection.apply(mask, toBytes(directionImage), width, height);
+
+		final Cursor<UnsignedByteType> c = Views.flatIterable(imgToShrink).cursor();
+		for(int i = 0; c.hasNext(); i++) c.next().set(mask[i] & 0xff);
+	}
+
+	/**
+	 * Copies a 2D byte image into an array, row by row
+	 */
+	static byte[] toBytes(Img<UnsignedByteType> img)
+	{
+		final byte[] pixels = new byte[(int) (img.dimension(0) * img.dimension(1))];
+		final Cursor<UnsignedByteType> c = Views.flatIterable(img).cursor();
+		for(int i = 0; c.hasNext(); i++) pixels[i] = (byte) c.next().get();
+		return pixels;
+	}
+
+	public static double computeConfluency (Img<UnsignedByteType> img)
+	{
+		Cursor<UnsignedByteType> c = img.cursor();		
+
+		double onPixels = 0;
+		double offPixels = 0;
+		
+		while (c.hasNext())
+		{
+			IntegerType<?> t = c.next();
+			
+			if(t.getInteger()==255)
+			{
+				onPixels++;
+			}
+			else offPixels++;
+		}
+
+		return (double)onPixels/(onPixels+offPixels);
+	}
+
+	/**
+	 * Removes the objects and fills the holes smaller than the sizes set in the parameters, see {@link ComponentFilter}.
+	 * @return a new mask, the input is left untouched
+	 */
+	public Img<UnsignedByteType> removeSmallObjectsAndFillHoles(Img<UnsignedByteType> img){
+		final int width = (int) img.dimension(0);
+		final int height = (int) img.dimension(1);
+		final byte[] mask = toBytes(img);
+		ComponentFilter.removeSmallObjectsAndFillHoles(mask, width, height, parameters.getMinObjectSize(), parameters.getMinHoleSize());
+		return ArrayImgs.unsignedBytes(mask, width, height);
+	}
+
+	/**
+	 * Index (0 to 7) of the strongest Kirsch kernel for every pixel of the image, see {@link KirschDirection}.
+	 * Bands of rows are processed on all available processors.
+	 */
+	public static Img<UnsignedByteType> getDirectionImage(ImagePlus img)
+	{
+		final ImageProcessor ip = img.getProcessor();
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final float[] pixels = PixelKernels.toFloat(ip, new Rectangle(0, 0, width, height));
+		final byte[] directions = new byte[width*height];
+		KirschDirection.apply(pixels, width, height, directions, Runtime.getRuntime().availableProcessors());
+		return ArrayImgs.unsignedBytes(directions, width, height);
+	}
+
+	public static < T extends RealType< T > & NativeType< T > > ArrayList<int[]> getOutlinePixels(Img<T> img)
+	{
+		ArrayList<int[]> outlinePixelsIndices = new ArrayList<int[]>();
+
+		Cursor<T> c = img.cursor();		
+
+		while (c.hasNext())
+		{
+			IntegerType t = (IntegerType)c.next();
+			int[] position = new int[2];
+			
+			if(t.getInteger()==255)
+			{
+				c.localize(position);
+				outlinePixelsIndices.add(position);
+			}
+		}
+
+		return outlinePixelsIndices;
+	}
+}
@@ -0,0 +1,133 @@
+package phantast;
+
+import phantast.LocalContrastFilter.GaussianMethod;
+
+/**
+ * Settings of the PHANTAST segmentation, see {@link PhantastEngine}.
+ * <p>
+ * The defaults are the ones of the PHANTAST_ plugin. Setters return the parameters
+ * themselves so that they can be chained.
+ */
+public class PhantastParameters {
+
+	private double sigma = 1.2;
+	private double epsilon = 0.03;
+	private boolean haloCorrection = true;
+	private double minObjectSize = 100;
+	private double minHoleSize = 25;
+	private int tileSize = 0;
+	private GaussianMethod gaussianMethod = GaussianMethod.EXACT;
+	private boolean measureColonies = false;
+
+	public double getSigma() {
+		return sigma;
+	}
+
+	/**
+	 * @param sigma standard deviation of the Gaussian used by the local contrast filter, in pixels
+	 */
+	public PhantastParameters setSigma(double sigma) {
+		this.sigma = sigma;
+		return this;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	/**
+	 * @param epsilon local contrast above which a pixel is considered part of a cell
+	 */
+	public PhantastParameters setEpsilon(double epsilon) {
+		this.epsilon = epsilon;
+		return this;
+	}
+
+	public boolean isHaloCorrection() {
+		return haloCorrection;
+	}
+
+	public PhantastParameters setHaloCorrection(boolean haloCorrection) {
+		this.haloCorrection = haloCorrection;
+		return this;
+	}
+
+	public double getMinObjectSize() {
+		return minObjectSize;
+	}
+
+	/**
+	 * @param minObjectSize objects smaller than this area, in pixels, are removed
+	 */
+	public PhantastParameters setMinObjectSize(double minObjectSize) {
+		this.minObjectSize = minObjectSize;
+		return this;
+	}
+
+	public double getMinHoleSize() {
+		return minHoleSize;
+	}
+
+	/**
+	 * @param minHoleSize holes smaller than this area, in pixels, are filled
+	 */
+	public PhantastParameters setMinHoleSize(double minHoleSize) {
+		this.minHoleSize = minHoleSize;
+		return this;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @param tileSize size of the tiles used by the local filters, 0 to process whole images
+	 */
+	public PhantastParameters setTileSize(int tileSize) {
+		this.tileSize = tileSize;
+		return this;
+	}
+
+	public GaussianMethod getGaussianMethod() {
+		return gaussianMethod;
+	}
+
+	/**
+	 * @param gaussianMethod implementation of the local contrast Gaussian, see {@link LocalContrastFilter}
+	 */
+	public PhantastParameters setGaussianMethod(GaussianMethod gaussianMethod) {
+		this.gaussianMethod = gaussianMethod;
+		return this;
+	}
+
+	public boolean isMeasureColonies() {
+		return measureColonies;
+	}
+
+	/**
+	 * @param measureColonies whether to measure every colony of the mask, see {@link ColonyMeasurements}
+	 */
+	public PhantastParameters setMeasureColonies(boolean measureColonies) {
+		this.measureColonies = measureColonies;
+		return this;
+	}
+
+	public PhantastParameters copy() {
+		return new PhantastParameters()
+				.setSigma(sigma)
+				.setEpsilon(epsilon)
+				.setHaloCorrection(haloCorrection)
+				.setMinObjectSize(minObjectSize)
+				.setMinHoleSize(minHoleSize)
+				.setTileSize(tileSize)
+				.setGaussianMethod(gaussianMethod)
+				.setMeasureColonies(measureColonies);
+	}
+
+	@Override
+	public String toString() {
+		return "sigma="+sigma+" epsilon="+epsilon+" halo="+haloCorrection
+				+" min.object="+minObjectSize+" min.hole="+minHoleSize+" tile="+tileSize+" gaussian="+gaussianMethod
+				+(measureColonies ? " colonies" : "");
+	}
+}
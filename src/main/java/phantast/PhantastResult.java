@@ -0,0 +1,63 @@
+package phantast;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Output of {@link PhantastEngine#segment(ij.process.ImageProcessor)} for one image.
+ */
+public class PhantastResult {
+
+	private final int width;
+	private final int height;
+	private final byte[] mask;
+	private final double confluency;
+	private final ColonyMeasurements colonies;
+
+	public PhantastResult(int width, int height, byte[] mask, double confluency) {
+		this(width, height, mask, confluency, null);
+	}
+
+	public PhantastResult(int width, int height, byte[] mask, double confluency, ColonyMeasurements colonies) {
+		this.width = width;
+		this.height = height;
+		this.mask = mask;
+		this.confluency = confluency;
+		this.colonies = colonies;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the mask, row by row, with 255 for cells and 0 for background
+	 */
+	public byte[] getMask() {
+		return mask;
+	}
+
+	/**
+	 * @return the fraction of the image covered by cells
+	 */
+	public double getConfluency() {
+		return confluency;
+	}
+
+	/**
+	 * @return the measurements of every colony, or null if they were not requested in the parameters
+	 */
+	public ColonyMeasurements getColonies() {
+		return colonies;
+	}
+
+	/**
+	 * @return the mask as a processor sharing the mask pixels
+	 */
+	public ByteProcessor toProcessor() {
+		return new ByteProcessor(width, height, mask);
+	}
+}
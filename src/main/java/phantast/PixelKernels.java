@@ -0,0 +1,163 @@
+package phantast;
+
+import java.awt.Rectangle;
+
+import ij.process.ImageProcessor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Element-wise loops over the primitive arrays behind 8, 16 and 32-bit images.
+ * <p>
+ * Reading the arrays directly, instead of going through ImgLib2 cursors and RealType
+ * accessors, gives plain counted loops that the JIT compiles to tight, and where possible
+ * vectorized, code, and the float loops use the SIMD instructions of {@link SimdKernels} where
+ * available. Every method works on one pixel type, the callers choose the variant and
+ * keep their generic code as a fallback for the images that are not backed by such arrays.
+ */
+public class PixelKernels {
+
+	/**
+	 * The array holding the pixels of an ArrayImg of 8-bit, 16-bit unsigned or float values,
+	 * in the order of its cursor.
+	 * @return a byte[], short[] or float[], or null for other images and types
+	 */
+	public static Object pixelArray(Img<?> img) {
+		if(!(img instanceof ArrayImg)) return null;
+		final Object type = img.firstElement();
+		if(!(type instanceof FloatType || type instanceof UnsignedShortType || type instanceof UnsignedByteType)) return null;
+
+		final Object access = ((ArrayImg<?, ?>) img).update(null);
+		if(!(access instanceof ArrayDataAccess)) return null;
+		final Object pixels = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		if(pixels instanceof float[] && ((float[]) pixels).length == img.size()) return pixels;
+		if(pixels instanceof short[] && ((short[]) pixels).length == img.size()) return pixels;
+		if(pixels instanceof byte[] && ((byte[]) pixels).length == img.size()) return pixels;
+		return null;
+	}
+
+	/**
+	 * @return the float pixels of an ArrayImg of FloatType, or null
+	 */
+	public static float[] floatArray(Img<?> img) {
+		final Object pixels = pixelArray(img);
+		return pixels instanceof float[] ? (float[]) pixels : null;
+	}
+
+	/**
+	 * Pixel values of a rectangle of a processor, as ImageProcessor.convertToFloat would give them.
+	 * 8 and 16-bit pixels are converted in a single pass, without cropping first. The pixels of a
+	 * float processor are returned as they are when the rectangle covers the whole image, so the
+	 * result must not be modified. Processors with a calibration table, and RGB processors, go
+	 * through convertToFloat.
+	 */
+	public static float[] toFloat(ImageProcessor ip, Rectangle r) {
+		return toFloat(ip, r, BufferPool.NONE);
+	}
+
+	/**
+	 * @param pool the copies of 8, 16 and 32-bit pixels are written to arrays borrowed from this pool
+	 * @return the converted pixels, to release to the pool unless they are the pixels of the processor
+	 * @see #toFloat(ImageProcessor, Rectangle)
+	 */
+	public static float[] toFloat(ImageProcessor ip, Rectangle r, BufferPool pool) {
+		final int width = ip.getWidth();
+		final Object pixels = ip.getPixels();
+		final boolean whole = r.x == 0 && r.y == 0 && r.width == width && r.height == ip.getHeight();
+
+		if(pixels instanceof float[]) {
+			final float[] source = (float[]) pixels;
+			if(whole) return source;
+			final float[] out = pool.floats(r.width*r.height);
+			for(int y = 0; y < r.height; y++) {
+				System.arraycopy(source, (r.y+y)*width + r.x, out, y*r.width, r.width);
+			}
+			return out;
+		}
+
+		if(ip.getCalibrationTable() == null) {
+			if(pixels instanceof byte[]) {
+				final byte[] source = (byte[]) pixels;
+				final float[] out = pool.floats(r.width*r.height);
+				for(int y = 0; y < r.height; y++) {
+					final int src = (r.y+y)*width + r.x;
+					final int dst = y*r.width;
+					for(int x = 0; x < r.width; x++) out[dst+x] = source[src+x] & 0xff;
+				}
+				return out;
+			}
+			if(pixels instanceof short[]) {
+				final short[] source = (short[]) pixels;
+				final float[] out = pool.floats(r.width*r.height);
+				for(int y = 0; y < r.height; y++) {
+					final int src = (r.y+y)*width + r.x;
+					final int dst = y*r.width;
+					for(int x = 0; x < r.width; x++) out[dst+x] = source[src+x] & 0xffff;
+				}
+				return out;
+			}
+		}
+
+		return (float[]) PhantastEngine.crop(ip, r).convertToFloat().getPixels();
+	}
+
+	/**
+	 * out = a * b
+	 */
+	public static void multiply(float[] a, float[] b, float[] out) {
+		SimdKernels.get().multiply(a, b, out);
+	}
+
+	/**
+	 * out = a / b where b is positive, 0 elsewhere
+	 */
+	public static void divide(float[] a, float[] b, float[] out) {
+		SimdKernels.get().divide(a, b, out);
+	}
+
+	/**
+	 * out = a - b where b is positive, 0 elsewhere
+	 */
+	public static void subtract(float[] a, float[] b, float[] out) {
+		SimdKernels.get().subtract(a, b, out);
+	}
+
+	/**
+	 * out = sqrt(a)
+	 */
+	public static void sqrt(float[] a, float[] out) {
+		SimdKernels.get().sqrt(a, out);
+	}
+
+	/**
+	 * Divides every pixel by the largest one, in place.
+	 */
+	public static void scale(float[] a) {
+		if(a.length == 0) return;
+		float max = a[0];
+		for(int i = 1; i < a.length; i++) {
+			if(a[i] > max) max = a[i];
+		}
+		for(int i = 0; i < a.length; i++) a[i] = a[i] / max;
+	}
+
+	/**
+	 * out = 255 where the pixel is above the threshold, 0 elsewhere.
+	 * @param pixels a byte[] (unsigned), short[] (unsigned) or float[]
+	 */
+	public static void threshold(Object pixels, double threshold, byte[] out) {
+		if(pixels instanceof float[]) {
+			SimdKernels.get().threshold((float[]) pixels, 0, threshold, out, 0, out.length);
+		} else if(pixels instanceof short[]) {
+			final short[] a = (short[]) pixels;
+			for(int i = 0; i < out.length; i++) out[i] = (a[i] & 0xffff) > threshold ? (byte) 255 : 0;
+		} else {
+			final byte[] a = (byte[]) pixels;
+			for(int i = 0; i < out.length; i++) out[i] = (a[i] & 0xff) > threshold ? (byte) 255 : 0;
+		}
+	}
+}
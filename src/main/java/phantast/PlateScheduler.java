@@ -0,0 +1,207 @@
+package phantast;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * Runs the fields of a plate concurrently on a work-stealing pool, within a memory budget.
+ * <p>
+ * The working set of every field is estimated from its TIFF header before it is opened: the
+ * pixels of the whole image, plus the float images of the local filters over one tile (or the
+ * whole slice) and the byte and label images of the cleaning stages. A field is only started
+ * while the estimates of the running fields and its own fit the budget, and while a thread is
+ * free. Fields are started largest first, and smaller fields fill the budget left by a large
+ * one that does not fit yet, so that all threads stay busy without running out of memory when
+ * field sizes vary. A field larger than the whole budget still runs, on its own.
+ * <p>
+ * The scheduler only decides when each field starts, the processing itself is given as a
+ * {@link FieldProcessor}. Wells are read from the file names, see {@link #wellOf(Path)}.
+ */
+public class PlateScheduler {
+
+	/** Processes one field, failures are reported by the processor itself */
+	public interface FieldProcessor {
+		void process(Path field);
+	}
+
+	/** Bytes per pixel of the tile processed by the local filters: float copy, local contrast and its two Gaussians */
+	static final int TILE_BYTES_PER_PIXEL = 16;
+
+	/** Bytes per pixel of a slice for the cleaning stages: threshold, directions, mask copies and labels */
+	static final int SLICE_BYTES_PER_PIXEL = 12;
+
+	/** Files that cannot be read as TIFF are assumed to expand to this multiple of their size */
+	static final int UNKNOWN_EXPANSION = 24;
+
+	/** Well name such as B07 or b7, not preceded by another letter nor followed by a digit */
+	public static final Pattern WELL = Pattern.compile("(?<![A-Za-z])([A-Pa-p])(\\d{1,2})(?!\\d)");
+
+	private final PhantastParameters parameters;
+	private final int parallelism;
+	private final long budget;
+
+	private long reserved; // Estimated bytes of the running fields
+	private int running;
+	private long peakReserved;
+
+	/**
+	 * @param parameters the segmentation parameters, for the tile size
+	 * @param parallelism number of fields processed at the same time
+	 * @param budget bytes that the running fields may use, for instance a part of {@link Runtime#maxMemory()}
+	 */
+	public PlateScheduler(PhantastParameters parameters, int parallelism, long budget) {
+		this.parameters = parameters.copy();
+		this.parallelism = Math.max(1, parallelism);
+		this.budget = budget;
+	}
+
+	/**
+	 * Processes all the fields and waits for them to finish.
+	 */
+	public void run(List<Path> fields, final FieldProcessor processor) throws InterruptedException {
+		// Largest first, so that small fields are left to fill the gaps at the end
+		final List<Field> pending = new ArrayList<Field>(fields.size());
+		for(Path path : fields) pending.add(new Field(path, estimateWorkingSet(path)));
+		Collections.sort(pending, new Comparator<Field>() {
+			@Override
+			public int compare(Field a, Field b) {
+				return Long.compare(b.bytes, a.bytes);
+			}
+		});
+
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			while(!pending.isEmpty()) {
+				final Field field = admit(pending);
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							processor.process(field.path);
+						} finally {
+							release(field);
+						}
+					}
+				});
+			}
+
+			synchronized(this) {
+				while(running > 0) wait();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for a free thread, then for the first pending field that fits the budget, and reserves its memory.
+	 */
+	private synchronized Field admit(List<Field> pending) throws InterruptedException {
+		while(true) {
+			if(running < parallelism) {
+				for(Iterator<Field> it = pending.iterator(); it.hasNext();) {
+					final Field field = it.next();
+					if(running == 0 || reserved + field.bytes <= budget) {
+						it.remove();
+						reserved += field.bytes;
+						running++;
+						peakReserved = Math.max(peakReserved, reserved);
+						return field;
+					}
+				}
+			}
+			wait();
+		}
+	}
+
+	private synchronized void release(Field field) {
+		reserved -= field.bytes;
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * @return the largest estimated working set of the fields running at the same time
+	 */
+	public synchronized long getPeakReserved() {
+		return peakReserved;
+	}
+
+	/**
+	 * Estimated memory needed to segment an image, from its TIFF header.
+	 */
+	long estimateWorkingSet(Path path) {
+		FileInfo[] info = null;
+		try {
+			final Path parent = path.toAbsolutePath().getParent();
+			info = new TiffDecoder(parent.toString() + File.separator, path.getFileName().toString()).getTiffInfo();
+		} catch(IOException | RuntimeException e) {
+			// Not a TIFF that ImageJ can read, estimated from the file size below
+		}
+
+		if(info == null || info.length == 0 || info[0].width <= 0 || info[0].height <= 0) {
+			try {
+				return Files.size(path) * UNKNOWN_EXPANSION;
+			} catch(IOException e) {
+				return 0; // Will fail when opened anyway
+			}
+		}
+
+		final long width = info[0].width;
+		final long height = info[0].height;
+		final long slices = info.length > 1 ? info.length : Math.max(1, info[0].nImages);
+		final int tileSize = parameters.getTileSize();
+		final long tile = tileSize > 0 ? Math.min(width*height, (long) tileSize*tileSize) : width*height;
+
+		return width*height*slices*Math.max(1, info[0].getBytesPerPixel())
+				+ tile*TILE_BYTES_PER_PIXEL
+				+ width*height*SLICE_BYTES_PER_PIXEL;
+	}
+
+	/**
+	 * Well of a field, from the first well name found in its file name, such as B07 in
+	 * "plate1_B07_f3.tif" or "B7-field3.tif". Files without a well name are grouped by directory.
+	 * @return the well, with the row in upper case and a two digit column, e.g. "B07"
+	 */
+	public static String wellOf(Path path) {
+		return wellOf(path, WELL);
+	}
+
+	/**
+	 * Well of a field, from the first match of a pattern in its file name.
+	 * @param pattern pattern whose first group is the row letter and second group the column number
+	 */
+	public static String wellOf(Path path, Pattern pattern) {
+		final String name = path.getFileName().toString().replaceFirst("(?i)\\.tiff?$", "");
+		final Matcher m = pattern.matcher(name);
+		if(m.find()) {
+			return m.group(1).toUpperCase(Locale.ROOT) + String.format(Locale.ROOT, "%02d", Integer.parseInt(m.group(2)));
+		}
+		final Path parent = path.getParent();
+		return parent != null && parent.getFileName() != null ? parent.getFileName().toString() : ".";
+	}
+
+	private static class Field {
+		final Path path;
+		final long bytes;
+
+		Field(Path path, long bytes) {
+			this.path = path;
+			this.bytes = bytes;
+		}
+	}
+}
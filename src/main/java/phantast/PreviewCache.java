@@ -0,0 +1,90 @@
+package phantast;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Keeps the expensive intermediate images of the last previewed slices, so that changing a
+ * parameter in the dialog only recomputes the stages that depend on it.
+ * <p>
+ * Local contrast images are keyed on the slice, sigma, Gaussian method and tile size, direction images on the slice only.
+ * Epsilon, the halo correction and the output options can then be changed without running
+ * the Gaussians or the Kirsch filters again. Both caches are bounded and drop the least
+ * recently used entry first.
+ */
+public class PreviewCache {
+
+	private final Map<String, float[]> localContrasts;
+	private final Map<Integer, byte[]> directions;
+
+	/**
+	 * @param capacity maximum number of images kept in each cache
+	 */
+	public PreviewCache(int capacity) {
+		localContrasts = new LruMap<String, float[]>(capacity);
+		directions = new LruMap<Integer, byte[]>(capacity);
+	}
+
+	/**
+	 * Segments a slice, reusing the cached local contrast and direction images when possible.
+	 * @param ip the slice, assumed not to change between calls for the same slice number
+	 * @param slice the slice number
+	 * @param engine the engine holding the current parameters
+	 */
+	public synchronized PhantastResult segment(ImageProcessor ip, int slice, PhantastEngine engine) {
+		final PhantastParameters parameters = engine.getParameters();
+		final float[] localContrast = getLocalContrast(ip, slice, engine);
+
+		byte[] sliceDirections = null;
+		if(parameters.isHaloCorrection()) {
+			sliceDirections = directions.get(slice);
+			if(sliceDirections == null) {
+				sliceDirections = engine.computeDirections(ip);
+				directions.put(slice, sliceDirections);
+			}
+		}
+
+		return engine.segment(localContrast, sliceDirections, ip.getWidth(), ip.getHeight());
+	}
+
+	/**
+	 * Local contrast image of a slice for the sigma of the engine, computed if it is not cached.
+	 * @return the cached array, not to be modified
+	 */
+	public synchronized float[] getLocalContrast(ImageProcessor ip, int slice, PhantastEngine engine) {
+		final PhantastParameters parameters = engine.getParameters();
+		// With the recursive Gaussian, the result depends on the tiles, see LocalContrastFilter
+		final String key = slice+"/"+parameters.getSigma()+"/"+parameters.getGaussianMethod()+"/"+parameters.getTileSize();
+		float[] localContrast = localContrasts.get(key);
+		if(localContrast == null) {
+			localContrast = engine.computeLocalContrast(ip);
+			localContrasts.put(key, localContrast);
+		}
+		return localContrast;
+	}
+
+	public synchronized void clear() {
+		localContrasts.clear();
+		directions.clear();
+	}
+
+	/**
+	 * Access-ordered map dropping its eldest entry above the capacity
+	 */
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		LruMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package phantast;
+
+import java.util.Random;
+
+/**
+ * Data-parallel loops of the segmentation: the Gaussian passes of the local contrast with its
+ * element-wise steps, the threshold, the Kirsch responses, the pixel counts and the element-wise
+ * helpers of {@link PixelKernels}.
+ * <p>
+ * This class is the scalar implementation, which runs on every JVM. When the plugin is packaged
+ * as a multi-release jar and runs on Java 17 or later with the incubating Vector API module
+ * (--add-modules jdk.incubator.vector), {@link #get()} returns a subclass using SIMD instructions
+ * instead. The SIMD loops perform the same float operations in the same order, so their results
+ * are identical, which SimdKernelsTest checks over many lengths and special values. When it is
+ * loaded, the SIMD implementation also runs a quick sanity check against this one, and is only
+ * used if both agree. Setting the system property phantast.simd to false keeps the scalar loops.
+ */
+public class SimdKernels {
+
+	private static final String VECTOR_IMPLEMENTATION = "phantast.VectorKernels";
+
+	private static final SimdKernels SCALAR = new SimdKernels();
+	private static volatile SimdKernels selected;
+
+	protected SimdKernels() {
+	}
+
+	/**
+	 * @return the implementation used by the segmentation, chosen once per JVM
+	 */
+	public static SimdKernels get() {
+		SimdKernels kernels = selected;
+		if(kernels == null) {
+			synchronized(SimdKernels.class) {
+				if(selected == null) selected = select();
+				kernels = selected;
+			}
+		}
+		return kernels;
+	}
+
+	/**
+	 * @return the scalar implementation, whatever the JVM
+	 */
+	public static SimdKernels scalar() {
+		return SCALAR;
+	}
+
+	private static SimdKernels select() {
+		if("false".equalsIgnoreCase(System.getProperty("phantast.simd"))) return SCALAR;
+		final SimdKernels vector = vector();
+		return vector != null && vector.agreesWith(SCALAR) ? vector : SCALAR;
+	}
+
+	/**
+	 * @return a new instance of the SIMD implementation, or null if it cannot be loaded on this JVM
+	 */
+	static SimdKernels vector() {
+		try {
+			return (SimdKernels) Class.forName(VECTOR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException | LinkageError | RuntimeException e) {
+			// Java 8 to 16, a jar without the SIMD classes, or the Vector API module not added
+			return null;
+		}
+	}
+
+	/**
+	 * Name of the implementation, for logs
+	 */
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Horizontal Gaussian pass over one padded line: out[offset+x] = sum of kernel[k]*line[x+k], and the same for the squares.
+	 */
+	public void convolveLine(float[] line, float[] lineSquares, float[] kernel, int width, float[] out, float[] outSquares, int offset) {
+		for(int x = 0; x < width; x++) {
+			float sum = 0f;
+			float sumSquares = 0f;
+			for(int k = 0; k < kernel.length; k++) {
+				sum += kernel[k] * line[x + k];
+				sumSquares += kernel[k] * lineSquares[x + k];
+			}
+			out[offset + x] = sum;
+			outSquares[offset + x] = sumSquares;
+		}
+	}
+
+	/**
+	 * Vertical Gaussian pass over one output row of a strip of sw columns, followed by the local contrast,
+	 * see {@link LocalContrastFilter#localContrast(float, float)}.
+	 * @param start index in the strip of the first input row
+	 * @param out receives the local contrast of the sw columns from dst
+	 */
+	public void convolveStripRow(float[] strip, float[] stripSquares, float[] kernel, int start, int sw, float[] out, int dst) {
+		for(int j = 0; j < sw; j++) {
+			float sum = 0f;
+			float sumSquares = 0f;
+			for(int k = 0, idx = start + j; k < kernel.length; k++, idx += sw) {
+				sum += kernel[k] * strip[idx];
+				sumSquares += kernel[k] * stripSquares[idx];
+			}
+			out[dst + j] = LocalContrastFilter.localContrast(sum, sumSquares);
+		}
+	}
+
+	/**
+	 * out[to+i] = 255 where pixels[from+i] is above the threshold, 0 elsewhere, for n pixels
+	 */
+	public void threshold(float[] pixels, int from, double threshold, byte[] out, int to, int n) {
+		for(int i = 0; i < n; i++) {
+			out[to+i] = pixels[from+i] > threshold ? (byte) 255 : 0;
+		}
+	}
+
+	/**
+	 * @return the number of values equal to value
+	 */
+	public int count(byte[] values, byte value) {
+		int count = 0;
+		for(int i = 0; i < values.length; i++) {
+			if(values[i] == value) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Index of the strongest Kirsch kernel for the pixels of row y from x = 1, away from the borders
+	 * of the image, see {@link KirschDirection}. Implementations stop before the last column, and may
+	 * leave more pixels at the end of the row to the caller.
+	 * @param y a row with a row above and below it
+	 * @return the number of pixels written, the next one being at x = 1 + count
+	 */
+	public int kirschInterior(float[] pixels, int width, int y, byte[] directions) {
+		return 0;
+	}
+
+	/** out = a * b */
+	public void multiply(float[] a, float[] b, float[] out) {
+		for(int i = 0; i < out.length; i++) out[i] = a[i] * b[i];
+	}
+
+	/** out = a / b where b is positive, 0 elsewhere */
+	public void divide(float[] a, float[] b, float[] out) {
+		for(int i = 0; i < out.length; i++) out[i] = b[i] > 0 ? a[i] / b[i] : 0;
+	}
+
+	/** out = a - b where b is positive, 0 elsewhere */
+	public void subtract(float[] a, float[] b, float[] out) {
+		for(int i = 0; i < out.length; i++) out[i] = b[i] > 0 ? a[i] - b[i] : 0;
+	}
+
+	/** out = sqrt(a) */
+	public void sqrt(float[] a, float[] out) {
+		for(int i = 0; i < out.length; i++) out[i] = (float) Math.sqrt(a[i]);
+	}
+
+	/**
+	 * Sanity check run when the SIMD implementation is loaded: every loop of this implementation and
+	 * of the reference runs on the same small random image, including negative, zero and NaN values,
+	 * and the results are compared bit for bit.
+	 */
+	boolean agreesWith(SimdKernels reference) {
+		final Random random = new Random(42);
+		final int width = 157, height = 9, n = width*height;
+		final float[] a = new float[n], b = new float[n];
+		for(int i = 0; i < n; i++) {
+			a[i] = random.nextInt(10) == 0 ? 0 : (float) (random.nextGaussian() * 100);
+			b[i] = random.nextInt(10) == 0 ? -a[i] : (float) (random.nextGaussian() * 100);
+		}
+		a[17] = Float.NaN;
+		b[42] = Float.NaN;
+		final float[] kernel = LocalContrastFilter.gaussianKernel(2.0);
+
+		final float[] mine = new float[n], mine2 = new float[n], theirs = new float[n], theirs2 = new float[n];
+		convolveLine(a, b, kernel, n - kernel.length + 1, mine, mine2, 0);
+		reference.convolveLine(a, b, kernel, n - kernel.length + 1, theirs, theirs2, 0);
+		if(!sameBits(mine, theirs) || !sameBits(mine2, theirs2)) return false;
+
+		final float[] squares = new float[n];
+		for(int i = 0; i < n; i++) squares[i] = Math.abs(b[i]) * 200;
+		for(int sw : new int[] {64, 37}) {
+			convolveStripRow(a, squares, kernel, 3, sw, mine, 1);
+			reference.convolveStripRow(a, squares, kernel, 3, sw, theirs, 1);
+			if(!sameBits(mine, theirs)) return false;
+		}
+
+		for(double threshold : new double[] {0, 0.03, 12.345678901, -5}) {
+			final byte[] mask = new byte[n], expected = new byte[n];
+			threshold(a, 3, threshold, mask, 1, n-5);
+			reference.threshold(a, 3, threshold, expected, 1, n-5);
+			if(!java.util.Arrays.equals(mask, expected)) return false;
+			if(count(mask, (byte) 255) != reference.count(mask, (byte) 255) || count(mask, (byte) 0) != reference.count(mask, (byte) 0)) return false;
+		}
+
+		final byte[] directions = new byte[n], expected = new byte[n];
+		for(int y = 1; y < height-1; y++) {
+			final int done = kirschInterior(a, width, y, directions);
+			KirschDirection.computeRows(a, width, height, expected, y, y+1, reference);
+			for(int x = 1; x <= done; x++) {
+				if(directions[y*width + x] != expected[y*width + x]) return false;
+			}
+		}
+
+		multiply(a, b, mine);
+		reference.multiply(a, b, theirs);
+		if(!sameBits(mine, theirs)) return false;
+		divide(a, b, mine);
+		reference.divide(a, b, theirs);
+		if(!sameBits(mine, theirs)) return false;
+		subtract(a, b, mine);
+		reference.subtract(a, b, theirs);
+		if(!sameBits(mine, theirs)) return false;
+		sqrt(a, mine);
+		reference.sqrt(a, theirs);
+		return sameBits(mine, theirs);
+	}
+
+	private static boolean sameBits(float[] a, float[] b) {
+		for(int i = 0; i < a.length; i++) {
+			if(Float.floatToIntBits(a[i]) != Float.floatToIntBits(b[i])) return false;
+		}
+		return true;
+	}
+}
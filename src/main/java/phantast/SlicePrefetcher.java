@@ -0,0 +1,116 @@
+package phantast;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Reads the slices of a stack ahead of the threads segmenting them.
+ * <p>
+ * A reader thread loads the slices in order into a bounded queue, so that disk reads and
+ * decoding of a virtual stack overlap with the segmentation, while at most depth slices wait
+ * in memory however long the stack is. Several consumers can take slices from the same
+ * prefetcher. Reads are synchronized on the stack, as virtual stacks are not meant to be read
+ * by several threads at once.
+ */
+public class SlicePrefetcher {
+
+	/** A slice of the stack, its number and its rank among the slices read */
+	public static class Slice {
+		public final int index;
+		public final int position;
+		public final ImageProcessor processor;
+
+		Slice(int index, int position, ImageProcessor processor) {
+			this.index = index;
+			this.position = position;
+			this.processor = processor;
+		}
+	}
+
+	/** Marks the end of the stack, put back by every consumer that takes it */
+	private static final Slice END = new Slice(0, -1, null);
+
+	private final BlockingQueue<Slice> queue;
+	private final Thread reader;
+	private volatile Throwable failure;
+
+	/**
+	 * Starts reading the slices first to last (inclusive).
+	 * @param depth number of slices read ahead
+	 */
+	public SlicePrefetcher(ImageStack stack, int first, int last, int depth) {
+		this(stack, range(first, last), depth);
+	}
+
+	/**
+	 * Starts reading the given slices, in the order given, e.g. the planes of one channel of a hyperstack.
+	 * @param slices the slice numbers, from 1
+	 * @param depth number of slices read ahead
+	 */
+	public SlicePrefetcher(final ImageStack stack, final int[] slices, int depth) {
+		queue = new ArrayBlockingQueue<Slice>(Math.max(1, depth));
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(int k = 0; k < slices.length; k++) {
+						ImageProcessor ip;
+						synchronized(stack) {
+							ip = stack.getProcessor(slices[k]);
+						}
+						queue.put(new Slice(slices[k], k, ip));
+					}
+				} catch(InterruptedException e) {
+					// Closed, the consumers are stopped too
+				} catch(Throwable e) {
+					// Including errors, e.g. running out of memory on a large virtual stack
+					failure = e;
+				} finally {
+					// Always queued, or the consumers would wait for the end forever
+					try {
+						queue.put(END);
+					} catch(InterruptedException e) {
+						queue.offer(END);
+					}
+				}
+			}
+		}, "PHANTAST-prefetch");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private static int[] range(int first, int last) {
+		final int[] slices = new int[Math.max(0, last - first + 1)];
+		for(int k = 0; k < slices.length; k++) slices[k] = first + k;
+		return slices;
+	}
+
+	/**
+	 * Waits for the next slice.
+	 * @return the next slice, or null once all slices have been taken
+	 * @throws RuntimeException the exception of the reader thread, if a slice could not be read
+	 * @throws Error the error of the reader thread, if a slice could not be read
+	 */
+	public Slice take() throws InterruptedException {
+		final Slice slice = queue.take();
+		if(slice == END) {
+			queue.put(END);
+			if(failure instanceof Error) throw (Error) failure;
+			if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if(failure != null) throw new RuntimeException(failure);
+			return null;
+		}
+		return slice;
+	}
+
+	/**
+	 * Stops reading, for instance when the processing is cancelled.
+	 */
+	public void close() {
+		reader.interrupt();
+		queue.clear();
+	}
+}
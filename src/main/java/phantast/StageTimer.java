@@ -0,0 +1,222 @@
+package phantast;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Wall time, CPU time and allocated bytes of every stage of the segmentation, per slice and per run.
+ * <p>
+ * Stages are timed by the thread running them, with {@link #start()} and {@link #stop(Split, Stage)},
+ * and add up in that thread until {@link #endSlice(int)} files them under the slice. Several threads
+ * can segment different slices with the same timer. CPU time and allocations come from the
+ * {@link ThreadMXBean} of the JVM, and are reported as -1 where the JVM does not measure them.
+ * Allocations only count the timing thread, not the threads reading slices ahead.
+ * <p>
+ * {@link #DISABLED} does not time anything, its {@link #start()} returns null, so that timing can
+ * stay in the code at the cost of one call per stage.
+ */
+public class StageTimer {
+
+	public enum Stage {
+		CONVERSION("Conversion"),
+		LOCAL_CONTRAST("Local contrast"),
+		THRESHOLD("Threshold"),
+		CLEANUP("Small objects and holes"),
+		DIRECTIONS("Direction image"),
+		HALO("Halo correction"),
+		COLONIES("Colony measurements"),
+		SELECTION("Selection"),
+		OUTPUT("Output");
+
+		private final String label;
+
+		Stage(String label) {
+			this.label = label;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	/** A timer that does not time anything */
+	public static final StageTimer DISABLED = new StageTimer(false);
+
+	private static final int WALL = 0, CPU = 1, ALLOCATED = 2, METRICS = 3;
+	private static final int N_STAGES = Stage.values().length;
+
+	/** Start of a timed stage */
+	public static class Split {
+		private final long wall;
+		private final long cpu;
+		private final long allocated;
+
+		Split(long wall, long cpu, long allocated) {
+			this.wall = wall;
+			this.cpu = cpu;
+			this.allocated = allocated;
+		}
+	}
+
+	private final boolean enabled;
+	private final ThreadMXBean threads;
+	private final com.sun.management.ThreadMXBean allocations; // Null if the JVM has no allocation counters
+	private final boolean cpuTime;
+
+	// Stages of the slice in progress on each thread
+	private final ThreadLocal<long[]> current = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[N_STAGES*METRICS];
+		}
+	};
+	private final Map<Integer, long[]> slices = new TreeMap<Integer, long[]>();
+
+	public StageTimer() {
+		this(true);
+	}
+
+	private StageTimer(boolean enabled) {
+		this.enabled = enabled;
+		threads = ManagementFactory.getThreadMXBean();
+
+		boolean cpu = false;
+		com.sun.management.ThreadMXBean alloc = null;
+		if(enabled) {
+			try {
+				if(threads.isCurrentThreadCpuTimeSupported()) {
+					if(!threads.isThreadCpuTimeEnabled()) threads.setThreadCpuTimeEnabled(true);
+					cpu = true;
+				}
+				if(threads instanceof com.sun.management.ThreadMXBean) {
+					alloc = (com.sun.management.ThreadMXBean) threads;
+					if(!alloc.isThreadAllocatedMemorySupported()) alloc = null;
+					else if(!alloc.isThreadAllocatedMemoryEnabled()) alloc.setThreadAllocatedMemoryEnabled(true);
+				}
+			} catch(UnsupportedOperationException | SecurityException e) {
+				// Measured as far as the JVM allows
+			}
+		}
+		cpuTime = cpu;
+		allocations = alloc;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts timing a stage on the current thread.
+	 * @return the start of the stage, or null if the timer is disabled
+	 */
+	public Split start() {
+		if(!enabled) return null;
+		return new Split(System.nanoTime(), cpuTime(), allocatedBytes());
+	}
+
+	/**
+	 * Adds the time and allocations since the split to the stage of the slice in progress on the current thread.
+	 * @param split the value returned by {@link #start()}, nothing is done if null
+	 */
+	public void stop(Split split, Stage stage) {
+		if(split == null) return;
+		final long[] totals = current.get();
+		final int k = stage.ordinal()*METRICS;
+		totals[k + WALL] += System.nanoTime() - split.wall;
+		totals[k + CPU] += cpuTime() - split.cpu;
+		totals[k + ALLOCATED] += allocatedBytes() - split.allocated;
+	}
+
+	/**
+	 * Files the stages timed by the current thread since its last slice under this slice.
+	 */
+	public void endSlice(int slice) {
+		if(!enabled) return;
+		final long[] totals = current.get();
+		synchronized(slices) {
+			final long[] previous = slices.get(slice);
+			if(previous == null) {
+				slices.put(slice, totals.clone());
+			} else {
+				for(int k = 0; k < totals.length; k++) previous[k] += totals[k];
+			}
+		}
+		Arrays.fill(totals, 0);
+	}
+
+	/**
+	 * @return the number of slices timed so far
+	 */
+	public int getSliceCount() {
+		synchronized(slices) {
+			return slices.size();
+		}
+	}
+
+	/**
+	 * Totals of the run, one line per stage, for the log.
+	 */
+	public String summary() {
+		final long[] run = runTotals();
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "%-24s %10s %10s %12s%n", "Stage ("+getSliceCount()+" slices)", "Wall ms", "CPU ms", "Allocated MB"));
+		for(Stage stage : Stage.values()) {
+			final int k = stage.ordinal()*METRICS;
+			if(run[k + WALL] == 0) continue;
+			sb.append(String.format(Locale.ROOT, "%-24s %10.1f %10s %12s%n", stage,
+					run[k + WALL] / 1e6,
+					cpuTime ? String.format(Locale.ROOT, "%.1f", run[k + CPU] / 1e6) : "-",
+					allocations != null ? String.format(Locale.ROOT, "%.1f", run[k + ALLOCATED] / 1048576.0) : "-"));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes one CSV row per slice and stage, followed by the totals of the run under slice 0.
+	 * Times are in milliseconds.
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		out.write("Slice,Stage,Wall ms,CPU ms,Allocated bytes\n");
+		synchronized(slices) {
+			for(Map.Entry<Integer, long[]> slice : slices.entrySet()) {
+				writeRows(out, slice.getKey(), slice.getValue());
+			}
+		}
+		writeRows(out, 0, runTotals());
+	}
+
+	private void writeRows(Writer out, int slice, long[] totals) throws IOException {
+		for(Stage stage : Stage.values()) {
+			final int k = stage.ordinal()*METRICS;
+			out.write(slice+","+stage+","
+					+String.format(Locale.ROOT, "%.3f", totals[k + WALL] / 1e6)+","
+					+(cpuTime ? String.format(Locale.ROOT, "%.3f", totals[k + CPU] / 1e6) : "-1")+","
+					+(allocations != null ? totals[k + ALLOCATED] : -1)+"\n");
+		}
+	}
+
+	private long[] runTotals() {
+		final long[] run = new long[N_STAGES*METRICS];
+		synchronized(slices) {
+			for(long[] totals : slices.values()) {
+				for(int k = 0; k < run.length; k++) run[k] += totals[k];
+			}
+		}
+		return run;
+	}
+
+	private long cpuTime() {
+		return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private long allocatedBytes() {
+		return allocations != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+}
@@ -0,0 +1,150 @@
+package phantast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the masks of a stack to a multi-page 8-bit TIFF file, compressed with PackBits.
+ * <p>
+ * Slices are compressed by the thread that puts them, and written in slice order as soon as all
+ * the previous ones are there, so only the slices that arrive early are kept in memory, and
+ * compressed. Each page is one strip followed by its IFD, and the pointer of the previous IFD is
+ * patched once a page is written. Masks being mostly long runs, pages are typically a few percent
+ * of their raw size. The file can be opened with File &gt; Import &gt; TIFF Virtual Stack.
+ * Offsets are 32-bit, as in any classic TIFF, so the file cannot exceed 4 GB.
+ */
+public class TiffMaskWriter implements MaskSink {
+
+	private static final int COMPRESSION_PACKBITS = 32773;
+
+	private final RandomAccessFile file;
+	private final int width;
+	private final int height;
+	private final boolean whiteIsZero;
+
+	private final Map<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+	private int nextSlice = 1;
+	private long previousIfdLink = 4; // Where the offset of the next IFD goes, the header for the first page
+
+	/**
+	 * @param whiteIsZero whether the masks are stored as WhiteIsZero, which ImageJ displays with an inverted LUT
+	 */
+	public TiffMaskWriter(File path, int width, int height, boolean whiteIsZero) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.whiteIsZero = whiteIsZero;
+
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		// Little endian header, the offset of the first IFD is written with the first page
+		file.write(new byte[] {'I', 'I', 42, 0, 0, 0, 0, 0});
+	}
+
+	@Override
+	public void put(int slice, byte[] mask) throws IOException {
+		final byte[] strip = packBits(mask, width, height);
+
+		synchronized(this) {
+			pending.put(slice, strip);
+			byte[] next;
+			while((next = pending.remove(nextSlice)) != null) {
+				writePage(next);
+				nextSlice++;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if(!pending.isEmpty()) throw new IOException("Missing mask slice "+nextSlice);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Appends the strip and its IFD, and links the IFD to the previous one.
+	 */
+	private void writePage(byte[] strip) throws IOException {
+		final long stripOffset = file.length();
+		final long ifdOffset = stripOffset + strip.length + (strip.length & 1); // IFDs start on a word boundary
+		if(ifdOffset + 2 + 10*12 + 4 > 0xffffffffL) throw new IOException("Mask file larger than 4 GB");
+
+		final ByteBuffer ifd = ByteBuffer.allocate(2 + 10*12 + 4).order(ByteOrder.LITTLE_ENDIAN);
+		ifd.putShort((short) 10);
+		entry(ifd, 256, 4, width);                        // ImageWidth
+		entry(ifd, 257, 4, height);                       // ImageLength
+		entry(ifd, 258, 3, 8);                            // BitsPerSample
+		entry(ifd, 259, 3, COMPRESSION_PACKBITS);         // Compression
+		entry(ifd, 262, 3, whiteIsZero ? 0 : 1);          // PhotometricInterpretation
+		entry(ifd, 273, 4, (int) stripOffset);            // StripOffsets
+		entry(ifd, 277, 3, 1);                            // SamplesPerPixel
+		entry(ifd, 278, 4, height);                       // RowsPerStrip
+		entry(ifd, 279, 4, strip.length);                 // StripByteCounts
+		entry(ifd, 284, 3, 1);                            // PlanarConfiguration
+		ifd.putInt(0);                                    // No next IFD yet
+
+		file.seek(stripOffset);
+		file.write(strip);
+		if((strip.length & 1) != 0) file.write(0);
+		file.write(ifd.array());
+
+		file.seek(previousIfdLink);
+		file.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) ifdOffset).array());
+		previousIfdLink = ifdOffset + 2 + 10*12;
+	}
+
+	private static void entry(ByteBuffer ifd, int tag, int type, int value) {
+		ifd.putShort((short) tag);
+		ifd.putShort((short) type);
+		ifd.putInt(1);
+		if(type == 3) {
+			ifd.putShort((short) value);
+			ifd.putShort((short) 0);
+		} else {
+			ifd.putInt(value);
+		}
+	}
+
+	/**
+	 * PackBits compression of an 8-bit image, row by row as required by the TIFF specification.
+	 */
+	static byte[] packBits(byte[] pixels, int width, int height) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, pixels.length / 16));
+		for(int y = 0; y < height; y++) {
+			final int end = (y+1) * width;
+			int i = y * width;
+			while(i < end) {
+				// Length of the run starting at i
+				int run = 1;
+				while(i + run < end && run < 128 && pixels[i + run] == pixels[i]) run++;
+
+				if(run >= 3) {
+					out.write(1 - run);
+					out.write(pixels[i]);
+					i += run;
+					continue;
+				}
+
+				// Literal bytes, up to the next run of three
+				int literal = 0;
+				while(i + literal < end && literal < 128) {
+					final int j = i + literal;
+					if(j + 2 < end && pixels[j] == pixels[j+1] && pixels[j] == pixels[j+2]) break;
+					literal++;
+				}
+				out.write(literal - 1);
+				out.write(pixels, i, literal);
+				i += literal;
+			}
+		}
+		return out.toByteArray();
+	}
+}
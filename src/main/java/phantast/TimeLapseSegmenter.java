@@ -0,0 +1,129 @@
+package phantast;
+
+import java.awt.Rectangle;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Segments the frames of a time-lapse in order, recomputing the local filters only where the
+ * image changed since the previous frame.
+ * <p>
+ * Frames are cut into tiles. A tile is recomputed when a pixel of the tile, or of the margin
+ * read by the filters around it, differs from the previous frame by more than the tolerance.
+ * Otherwise the thresholded local contrast and the direction image of the previous frame are
+ * reused for that tile. The component filter and the halo correction are global and always run
+ * on the whole frame, they are cheap next to the Gaussians. With a tolerance of 0 and the exact
+ * Gaussian, the default, the masks are the same as with {@link PhantastEngine#segment(ImageProcessor)}.
+ * Frames are always tiled, so with the recursive Gaussian they only stay close to them, see
+ * {@link LocalContrastFilter}.
+ * <p>
+ * A segmenter keeps the previous frame and its intermediate images, so it is not thread-safe.
+ * Use one per sequence of frames, and do not modify a processor once it has been segmented.
+ */
+public class TimeLapseSegmenter {
+
+	/** Tile size used when the parameters do not set one */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	private final PhantastEngine engine;
+	private final double tolerance;
+	private final int tileSize;
+
+	private ImageProcessor previous;
+	private byte[] thresholded;
+	private byte[] directions;
+
+	private int reusedTiles;
+	private int totalTiles;
+
+	/**
+	 * @param engine the engine, whose tile size is used for change detection if set
+	 * @param tolerance largest difference between two pixel values considered as no change
+	 */
+	public TimeLapseSegmenter(PhantastEngine engine, double tolerance) {
+		this.engine = engine;
+		this.tolerance = tolerance;
+		final int engineTileSize = engine.getParameters().getTileSize();
+		this.tileSize = engineTileSize > 0 ? engineTileSize : DEFAULT_TILE_SIZE;
+	}
+
+	/**
+	 * Segments the next frame of the sequence.
+	 */
+	public PhantastResult segment(ImageProcessor ip) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final boolean halo = engine.getParameters().isHaloCorrection();
+
+		// The first frame, or a change of size, starts a new sequence
+		final boolean first = previous == null || previous.getWidth() != width || previous.getHeight() != height;
+		if(first) {
+			thresholded = new byte[width*height];
+			directions = halo ? new byte[width*height] : null;
+		}
+
+		for(int ty = 0; ty < height; ty += tileSize) {
+			for(int tx = 0; tx < width; tx += tileSize) {
+				final Rectangle core = new Rectangle(tx, ty, Math.min(tileSize, width-tx), Math.min(tileSize, height-ty));
+				totalTiles++;
+
+				if(!first && !changed(previous, ip, engine.tileBounds(core, width, height, true))) {
+					reusedTiles++;
+					continue;
+				}
+				engine.computeTile(ip, core, null, thresholded, directions);
+			}
+		}
+		previous = ip;
+
+		// The cleaning stages write into their input, the raw threshold is kept for the next frame
+		return engine.clean(thresholded.clone(), directions, width, height);
+	}
+
+	/**
+	 * Whether a pixel of the rectangle differs by more than the tolerance between the two images.
+	 */
+	boolean changed(ImageProcessor a, ImageProcessor b, Rectangle r) {
+		final Object pa = a.getPixels();
+		final Object pb = b.getPixels();
+		final int width = a.getWidth();
+
+		if(pa instanceof byte[] && pb instanceof byte[]) {
+			final byte[] va = (byte[]) pa, vb = (byte[]) pb;
+			for(int y = r.y; y < r.y+r.height; y++) {
+				for(int i = y*width + r.x, end = i + r.width; i < end; i++) {
+					if(Math.abs((va[i] & 0xff) - (vb[i] & 0xff)) > tolerance) return true;
+				}
+			}
+		} else if(pa instanceof short[] && pb instanceof short[]) {
+			final short[] va = (short[]) pa, vb = (short[]) pb;
+			for(int y = r.y; y < r.y+r.height; y++) {
+				for(int i = y*width + r.x, end = i + r.width; i < end; i++) {
+					if(Math.abs((va[i] & 0xffff) - (vb[i] & 0xffff)) > tolerance) return true;
+				}
+			}
+		} else {
+			for(int y = r.y; y < r.y+r.height; y++) {
+				for(int x = r.x; x < r.x+r.width; x++) {
+					// Written so that NaN values count as a change
+					if(!(Math.abs(a.getf(x, y) - b.getf(x, y)) <= tolerance)) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of tiles whose local filters were reused from the previous frame
+	 */
+	public int getReusedTiles() {
+		return reusedTiles;
+	}
+
+	/**
+	 * @return the number of tiles of all the frames segmented so far
+	 */
+	public int getTotalTiles() {
+		return totalTiles;
+	}
+}
@@ -0,0 +1,223 @@
+package phantast;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of {@link SimdKernels} on the incubating Vector API of Java 17.
+ * <p>
+ * Only packaged in the Java 17 part of the multi-release jar, and loaded by {@link SimdKernels#get()}
+ * when the jdk.incubator.vector module is present. Every loop performs the same float operations
+ * as the scalar one, in the same order and without fused multiply-adds, so the results are
+ * identical. The tails of the loops that do not fill a vector go through the scalar code.
+ */
+class VectorKernels extends SimdKernels {
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+	// Kirsch responses are summed as doubles, with one float lane per double lane
+	private static final VectorSpecies<Double> KIRSCH_DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> KIRSCH_FLOATS = FloatVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(KIRSCH_DOUBLES.length() * Float.SIZE));
+	private static final VectorSpecies<Integer> KIRSCH_INTS = IntVector.SPECIES_PREFERRED.withShape(KIRSCH_FLOATS.vectorShape());
+
+	VectorKernels() {
+	}
+
+	@Override
+	public String getName() {
+		return "SIMD, "+FLOATS.vectorBitSize()+" bits";
+	}
+
+	@Override
+	public void convolveLine(float[] line, float[] lineSquares, float[] kernel, int width, float[] out, float[] outSquares, int offset) {
+		final int step = FLOATS.length();
+		int x = 0;
+		for(; x <= width - step; x += step) {
+			FloatVector sum = FloatVector.zero(FLOATS);
+			FloatVector sumSquares = FloatVector.zero(FLOATS);
+			for(int k = 0; k < kernel.length; k++) {
+				sum = sum.add(FloatVector.fromArray(FLOATS, line, x + k).mul(kernel[k]));
+				sumSquares = sumSquares.add(FloatVector.fromArray(FLOATS, lineSquares, x + k).mul(kernel[k]));
+			}
+			sum.intoArray(out, offset + x);
+			sumSquares.intoArray(outSquares, offset + x);
+		}
+		for(; x < width; x++) {
+			float sum = 0f;
+			float sumSquares = 0f;
+			for(int k = 0; k < kernel.length; k++) {
+				sum += kernel[k] * line[x + k];
+				sumSquares += kernel[k] * lineSquares[x + k];
+			}
+			out[offset + x] = sum;
+			outSquares[offset + x] = sumSquares;
+		}
+	}
+
+	@Override
+	public void convolveStripRow(float[] strip, float[] stripSquares, float[] kernel, int start, int sw, float[] out, int dst) {
+		final int step = FLOATS.length();
+		int j = 0;
+		for(; j <= sw - step; j += step) {
+			FloatVector sum = FloatVector.zero(FLOATS);
+			FloatVector sumSquares = FloatVector.zero(FLOATS);
+			for(int k = 0, idx = start + j; k < kernel.length; k++, idx += sw) {
+				sum = sum.add(FloatVector.fromArray(FLOATS, strip, idx).mul(kernel[k]));
+				sumSquares = sumSquares.add(FloatVector.fromArray(FLOATS, stripSquares, idx).mul(kernel[k]));
+			}
+
+			// LocalContrastFilter.localContrast, lane by lane
+			final FloatVector squared = sum.mul(sum);
+			final FloatVector variance = sumSquares.sub(squared).blend(0f, squared.compare(VectorOperators.GT, 0f).not());
+			final FloatVector deviation = variance.sqrt();
+			deviation.div(sum).blend(0f, sum.compare(VectorOperators.GT, 0f).not()).intoArray(out, dst + j);
+		}
+		for(; j < sw; j++) {
+			float sum = 0f;
+			float sumSquares = 0f;
+			for(int k = 0, idx = start + j; k < kernel.length; k++, idx += sw) {
+				sum += kernel[k] * strip[idx];
+				sumSquares += kernel[k] * stripSquares[idx];
+			}
+			out[dst + j] = LocalContrastFilter.localContrast(sum, sumSquares);
+		}
+	}
+
+	@Override
+	public void threshold(float[] pixels, int from, double threshold, byte[] out, int to, int n) {
+		// For floats, v > threshold is the same as v > the largest float not above the threshold
+		float limit = (float) threshold;
+		if(limit > threshold) limit = Math.nextDown(limit);
+
+		// One byte vector is filled from the masks of several float vectors
+		final int floatStep = FLOATS.length();
+		final int step = BYTES.length();
+		int i = 0;
+		if(!Double.isNaN(threshold) && step % floatStep == 0 && step <= Long.SIZE) {
+			final ByteVector zero = ByteVector.zero(BYTES);
+			for(; i <= n - step; i += step) {
+				long bits = 0;
+				for(int k = 0; k < step; k += floatStep) {
+					bits |= FloatVector.fromArray(FLOATS, pixels, from + i + k).compare(VectorOperators.GT, limit).toLong() << k;
+				}
+				zero.blend((byte) 255, VectorMask.fromLong(BYTES, bits)).intoArray(out, to + i);
+			}
+		}
+		for(; i < n; i++) {
+			out[to+i] = pixels[from+i] > threshold ? (byte) 255 : 0;
+		}
+	}
+
+	@Override
+	public int count(byte[] values, byte value) {
+		final int step = BYTES.length();
+		int count = 0;
+		int i = 0;
+		for(; i <= values.length - step; i += step) {
+			count += ByteVector.fromArray(BYTES, values, i).compare(VectorOperators.EQ, value).trueCount();
+		}
+		for(; i < values.length; i++) {
+			if(values[i] == value) count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int kirschInterior(float[] pixels, int width, int y, byte[] directions) {
+		final float[][] kernels = KirschDirection.KERNELS;
+		final int step = KIRSCH_FLOATS.length();
+		final int above = (y-1) * width;
+		final int row = y * width;
+		final int below = (y+1) * width;
+		final FloatVector[] n = new FloatVector[9];
+		final int[] ids = new int[step];
+
+		// The last pixel read by a vector starting at x is x+step, which must stay before the last column
+		int x = 1;
+		for(; x + step <= width - 1; x += step) {
+			n[0] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, above + x-1);
+			n[1] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, above + x);
+			n[2] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, above + x+1);
+			n[3] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, row + x-1);
+			n[4] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, row + x);
+			n[5] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, row + x+1);
+			n[6] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, below + x-1);
+			n[7] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, below + x);
+			n[8] = FloatVector.fromArray(KIRSCH_FLOATS, pixels, below + x+1);
+
+			FloatVector max = null;
+			IntVector kernelId = IntVector.zero(KIRSCH_INTS);
+			for(int k = 0; k < 8; k++) {
+				final float[] kernel = kernels[k];
+				// Float products summed as double, then rounded to float, as in KirschDirection
+				DoubleVector sum = DoubleVector.zero(KIRSCH_DOUBLES);
+				for(int i = 0; i < 9; i++) {
+					sum = sum.add((DoubleVector) n[i].mul(kernel[i]).convertShape(VectorOperators.F2D, KIRSCH_DOUBLES, 0));
+				}
+				final FloatVector response = (FloatVector) sum.convertShape(VectorOperators.D2F, KIRSCH_FLOATS, 0);
+
+				if(k == 0) {
+					max = response;
+				} else {
+					final VectorMask<Float> stronger = response.compare(VectorOperators.GT, max);
+					max = max.blend(response, stronger);
+					kernelId = kernelId.blend(k, stronger.cast(KIRSCH_INTS));
+				}
+			}
+
+			kernelId.intoArray(ids, 0);
+			for(int k = 0; k < step; k++) directions[row + x + k] = (byte) ids[k];
+		}
+		return x - 1;
+	}
+
+	@Override
+	public void multiply(float[] a, float[] b, float[] out) {
+		final int bound = FLOATS.loopBound(out.length);
+		int i = 0;
+		for(; i < bound; i += FLOATS.length()) {
+			FloatVector.fromArray(FLOATS, a, i).mul(FloatVector.fromArray(FLOATS, b, i)).intoArray(out, i);
+		}
+		for(; i < out.length; i++) out[i] = a[i] * b[i];
+	}
+
+	@Override
+	public void divide(float[] a, float[] b, float[] out) {
+		final int bound = FLOATS.loopBound(out.length);
+		int i = 0;
+		for(; i < bound; i += FLOATS.length()) {
+			final FloatVector vb = FloatVector.fromArray(FLOATS, b, i);
+			FloatVector.fromArray(FLOATS, a, i).div(vb).blend(0f, vb.compare(VectorOperators.GT, 0f).not()).intoArray(out, i);
+		}
+		for(; i < out.length; i++) out[i] = b[i] > 0 ? a[i] / b[i] : 0;
+	}
+
+	@Override
+	public void subtract(float[] a, float[] b, float[] out) {
+		final int bound = FLOATS.loopBound(out.length);
+		int i = 0;
+		for(; i < bound; i += FLOATS.length()) {
+			final FloatVector vb = FloatVector.fromArray(FLOATS, b, i);
+			FloatVector.fromArray(FLOATS, a, i).sub(vb).blend(0f, vb.compare(VectorOperators.GT, 0f).not()).intoArray(out, i);
+		}
+		for(; i < out.length; i++) out[i] = b[i] > 0 ? a[i] - b[i] : 0;
+	}
+
+	@Override
+	public void sqrt(float[] a, float[] out) {
+		final int bound = FLOATS.loopBound(out.length);
+		int i = 0;
+		for(; i < bound; i += FLOATS.length()) {
+			// Correctly rounded, like (float) Math.sqrt of the float
+			FloatVector.fromArray(FLOATS, a, i).sqrt().intoArray(out, i);
+		}
+		for(; i < out.length; i++) out[i] = (float) Math.sqrt(a[i]);
+	}
+}
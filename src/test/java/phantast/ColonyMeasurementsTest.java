@@ -0,0 +1,98 @@
+package phantast;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the single-pass colony measurements against a flood fill of every 8-connected colony.
+ */
+public class ColonyMeasurementsTest {
+
+	private static final int[][] SIDES = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+
+	@Test
+	public void sameAsFloodFill() {
+		final Random random = new Random(12);
+		final int[][] sizes = {{1, 1}, {1, 9}, {9, 1}, {3, 3}, {17, 9}, {64, 48}, {131, 77}};
+		for(int[] size : sizes) {
+			final int width = size[0], height = size[1];
+			for(int run = 0; run < 10; run++) {
+				final byte[] mask = HaloCorrectionTest.randomBlobs(random, width, height);
+				// Scratch labels with leftovers of a previous slice
+				final int[] labels = new int[width*height];
+				for(int i = 0; i < labels.length; i++) labels[i] = random.nextInt();
+				assertSameAsFloodFill(width+"x"+height+", run "+run, mask, width, height, ColonyMeasurements.measure(mask, width, height, labels));
+			}
+		}
+	}
+
+	@Test
+	public void emptyAndFullMasks() {
+		final int width = 13, height = 7;
+		assertEquals(0, ColonyMeasurements.measure(new byte[width*height], width, height).size());
+		final byte[] full = new byte[width*height];
+		Arrays.fill(full, (byte) 255);
+		final ColonyMeasurements colonies = ColonyMeasurements.measure(full, width, height);
+		assertSameAsFloodFill("full", full, width, height, colonies);
+		assertEquals(2*(width+height), colonies.getPerimeter(0));
+	}
+
+	private static void assertSameAsFloodFill(String message, byte[] mask, int width, int height, ColonyMeasurements colonies) {
+		final boolean[] seen = new boolean[mask.length];
+		final int[] component = new int[mask.length];
+		int colony = 0;
+		for(int start = 0; start < mask.length; start++) {
+			if(seen[start] || mask[start] == 0) continue;
+			int size = 0;
+			component[size++] = start;
+			seen[start] = true;
+			for(int k = 0; k < size; k++) {
+				final int x = component[k] % width, y = component[k] / width;
+				for(int dy = -1; dy <= 1; dy++) {
+					for(int dx = -1; dx <= 1; dx++) {
+						final int nx = x+dx, ny = y+dy;
+						if(nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+						final int next = ny*width + nx;
+						if(!seen[next] && mask[next] != 0) {
+							seen[next] = true;
+							component[size++] = next;
+						}
+					}
+				}
+			}
+
+			// Colonies come in the order of their first pixel, row by row
+			long xSum = 0, ySum = 0;
+			int xMin = width, yMin = height, xMax = -1, yMax = -1, perimeter = 0;
+			for(int k = 0; k < size; k++) {
+				final int x = component[k] % width, y = component[k] / width;
+				xSum += x;
+				ySum += y;
+				xMin = Math.min(xMin, x);
+				yMin = Math.min(yMin, y);
+				xMax = Math.max(xMax, x);
+				yMax = Math.max(yMax, y);
+				for(int[] side : SIDES) {
+					final int nx = x+side[0], ny = y+side[1];
+					if(nx < 0 || ny < 0 || nx >= width || ny >= height || mask[ny*width + nx] == 0) perimeter++;
+				}
+			}
+
+			final String row = message+", colony "+colony;
+			assertEquals(row, size, colonies.getArea(colony));
+			assertEquals(row, perimeter, colonies.getPerimeter(colony));
+			assertEquals(row, (double) xSum / size + 0.5, colonies.getXCentroid(colony), 1e-9);
+			assertEquals(row, (double) ySum / size + 0.5, colonies.getYCentroid(colony), 1e-9);
+			assertEquals(row, xMin, colonies.getX(colony));
+			assertEquals(row, yMin, colonies.getY(colony));
+			assertEquals(row, xMax - xMin + 1, colonies.getWidth(colony));
+			assertEquals(row, yMax - yMin + 1, colonies.getHeight(colony));
+			colony++;
+		}
+		assertEquals(message, colony, colonies.size());
+	}
+}
@@ -0,0 +1,102 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the union-find component filter against a flood fill of the 8-connected components.
+ */
+public class ComponentFilterTest {
+
+	@Test
+	public void sameAsFloodFill() {
+		final Random random = new Random(6);
+		final int[][] sizes = {{1, 1}, {1, 9}, {9, 1}, {3, 3}, {17, 9}, {64, 48}, {131, 77}};
+		final double[][] areas = {{100, 25}, {1, 1}, {2, 2}, {5, 40}, {0, 0}, {1000, 1000}};
+		for(int[] size : sizes) {
+			final int width = size[0], height = size[1];
+			for(int run = 0; run < 10; run++) {
+				final byte[] mask = HaloCorrectionTest.randomBlobs(random, width, height);
+				for(double[] area : areas) {
+					final byte[] expected = mask.clone();
+					removeSmallComponents(expected, width, height, (byte) 255, (byte) 0, area[0]);
+					removeSmallComponents(expected, width, height, (byte) 0, (byte) 255, area[1]);
+
+					final byte[] actual = mask.clone();
+					final int objectPixels = ComponentFilter.removeSmallObjectsAndFillHoles(actual, width, height, area[0], area[1]);
+
+					final String message = width+"x"+height+", run "+run+", areas "+Arrays.toString(area);
+					assertArrayEquals(message, expected, actual);
+					assertEquals(message, count(expected, (byte) 255), objectPixels);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void diagonalPixelsAreConnected() {
+		// A diagonal of 5 pixels is one 8-connected object of 5 pixels, the background around it stays one 8-connected component
+		final int width = 5, height = 5;
+		final byte[] mask = new byte[width*height];
+		for(int k = 0; k < 5; k++) mask[k*width + k] = (byte) 255;
+		final byte[] kept = mask.clone();
+		assertEquals(5, ComponentFilter.removeSmallObjectsAndFillHoles(kept, width, height, 5, 0));
+		assertArrayEquals(mask, kept);
+		assertEquals(0, ComponentFilter.removeSmallObjectsAndFillHoles(mask.clone(), width, height, 6, 0));
+	}
+
+	@Test
+	public void labelsNeedNotBeCleared() {
+		final Random random = new Random(7);
+		final int width = 50, height = 40;
+		final byte[] mask = HaloCorrectionTest.randomBlobs(random, width, height);
+		final byte[] expected = mask.clone();
+		final int expectedPixels = ComponentFilter.removeSmallObjectsAndFillHoles(expected, width, height, 30, 10);
+		final int[] labels = new int[width*height];
+		for(int i = 0; i < labels.length; i++) labels[i] = random.nextInt();
+		assertEquals(expectedPixels, ComponentFilter.removeSmallObjectsAndFillHoles(mask, width, height, 30, 10, labels));
+		assertArrayEquals(expected, mask);
+	}
+
+	/**
+	 * Replaces the 8-connected components of pixels equal to value with fewer than minArea pixels, found by flood fill
+	 */
+	private static void removeSmallComponents(byte[] mask, int width, int height, byte value, byte replacement, double minArea) {
+		final boolean[] seen = new boolean[mask.length];
+		final int[] component = new int[mask.length];
+		for(int start = 0; start < mask.length; start++) {
+			if(seen[start] || mask[start] != value) continue;
+			int size = 0;
+			component[size++] = start;
+			seen[start] = true;
+			for(int k = 0; k < size; k++) {
+				final int x = component[k] % width, y = component[k] / width;
+				for(int dy = -1; dy <= 1; dy++) {
+					for(int dx = -1; dx <= 1; dx++) {
+						final int nx = x+dx, ny = y+dy;
+						if(nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+						final int next = ny*width + nx;
+						if(!seen[next] && mask[next] == value) {
+							seen[next] = true;
+							component[size++] = next;
+						}
+					}
+				}
+			}
+			if(size < minArea) {
+				for(int k = 0; k < size; k++) mask[component[k]] = replacement;
+			}
+		}
+	}
+
+	private static int count(byte[] mask, byte value) {
+		int count = 0;
+		for(byte v : mask) if(v == value) count++;
+		return count;
+	}
+}
@@ -0,0 +1,126 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * Checks that the traced selection covers exactly the object pixels of the mask.
+ */
+public class ContourTracerTest {
+
+	@Test
+	public void randomMasks() {
+		final Random random = new Random(11);
+		final int[][] sizes = {{1, 1}, {1, 7}, {7, 1}, {3, 3}, {17, 9}, {64, 48}};
+		for(int[] size : sizes) {
+			final int width = size[0], height = size[1];
+			for(int run = 0; run < 20; run++) {
+				final byte[] mask = HaloCorrectionTest.randomBlobs(random, width, height);
+				assertSameMask(width+"x"+height+", run "+run, mask, width, height);
+			}
+		}
+	}
+
+	@Test
+	public void objectsTouchingByACorner() {
+		// Checkerboard: every object pixel touches four others by a corner only
+		final int width = 6, height = 5;
+		final byte[] mask = new byte[width*height];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				if((x+y) % 2 == 0) mask[y*width + x] = (byte) 255;
+			}
+		}
+		assertSameMask("checkerboard", mask, width, height);
+		assertSameMask("diagonal", parse(
+				"#...",
+				".#..",
+				"..##",
+				"..##"), 4, 4);
+	}
+
+	@Test
+	public void holesAndObjectsInHoles() {
+		assertSameMask("hole", parse(
+				"#####",
+				"#...#",
+				"#...#",
+				"#####"), 5, 4);
+		assertSameMask("object in a hole", parse(
+				"#######",
+				"#.....#",
+				"#.###.#",
+				"#.#.#.#",
+				"#.###.#",
+				"#.....#",
+				"#######"), 7, 7);
+		assertSameMask("hole touching the outside by a corner", parse(
+				"....",
+				".##.",
+				".#.#",
+				"..#."), 4, 4);
+	}
+
+	@Test
+	public void borderPixels() {
+		final int width = 5, height = 4;
+		final byte[] full = new byte[width*height];
+		Arrays.fill(full, (byte) 255);
+		final Roi roi = ContourTracer.trace(full, width, height);
+		assertTrue(roi instanceof PolygonRoi);
+		assertSameMask("full", full, width, height);
+		assertSameMask("corners", parse(
+				"#...#",
+				".....",
+				".....",
+				"#...#"), width, height);
+		assertNull(ContourTracer.trace(new byte[width*height], width, height));
+	}
+
+	private static void assertSameMask(String message, byte[] mask, int width, int height) {
+		final byte[] expected = new byte[mask.length];
+		for(int i = 0; i < mask.length; i++) if(mask[i] != 0) expected[i] = (byte) 255;
+		assertArrayEquals(message, expected, rasterize(ContourTracer.trace(mask, width, height), width, height));
+	}
+
+	/**
+	 * Pixels covered by the selection, as ImageJ fills it
+	 */
+	private static byte[] rasterize(Roi roi, int width, int height) {
+		final byte[] pixels = new byte[width*height];
+		if(roi == null) return pixels;
+		final Rectangle bounds = roi.getBounds();
+		final ImageProcessor roiMask = roi.getMask();
+		for(int y = bounds.y; y < bounds.y+bounds.height; y++) {
+			for(int x = bounds.x; x < bounds.x+bounds.width; x++) {
+				if(roiMask == null || roiMask.getPixel(x-bounds.x, y-bounds.y) != 0) pixels[y*width + x] = (byte) 255;
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * A mask drawn with '#' for the objects, one string per row
+	 */
+	private static byte[] parse(String... rows) {
+		final int width = rows[0].length();
+		final byte[] mask = new byte[width*rows.length];
+		for(int y = 0; y < rows.length; y++) {
+			for(int x = 0; x < width; x++) {
+				if(rows[y].charAt(x) == '#') mask[y*width + x] = (byte) 255;
+			}
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,173 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the halo correction against a direct port of the original loop on lists of positions,
+ * including its quirks: the bounds check on the next pixel, and the first pixel of every removal
+ * batch being kept.
+ */
+public class HaloCorrectionTest {
+
+	private static final int[][] PROJECTION_CONES = {{1, 2, 8}, {2, 1, 3}, {3, 2, 4}, {4, 3, 5}, {5, 4, 6}, {6, 5, 7}, {7, 6, 8}, {8, 1, 7}};
+	private static final int[][] DIRECTION_OFFSETS = {{1,0}, {1,-1}, {0,-1}, {-1,-1}, {-1,0}, {-1,1}, {0,1}, {1,1}};
+
+	@Test
+	public void sameMasksAsOriginalLoop() {
+		final Random random = new Random(1);
+		final int[][] sizes = {{1, 7}, {3, 3}, {5, 5}, {17, 9}, {64, 48}, {131, 77}};
+		for(int[] size : sizes) {
+			final int width = size[0], height = size[1];
+			for(int run = 0; run < 20; run++) {
+				final byte[] mask = randomBlobs(random, width, height);
+				final byte[] directions = new byte[width*height];
+				for(int i = 0; i < directions.length; i++) directions[i] = (byte) random.nextInt(8);
+				final int[] starts = boundaryPixels(mask, width, height);
+
+				final byte[] expected = mask.clone();
+				original(starts, expected, directions, width, height);
+
+				final byte[] actual = mask.clone();
+				final HaloCorrection.IntQueue queue = new HaloCorrection.IntQueue(starts.length);
+				for(int start : starts) queue.add(start);
+				final int removed = HaloCorrection.shrink(queue, actual, directions, width, height, new byte[width*height]);
+
+				assertArrayEquals(width+"x"+height+", run "+run, expected, actual);
+				assertEquals(width+"x"+height+", run "+run, objectPixels(mask) - objectPixels(expected), removed);
+			}
+		}
+	}
+
+	@Test
+	public void firstPixelOfEveryBatchIsKept() {
+		// A row of object pixels pointing East, started from its two first pixels
+		final int width = 6, height = 3;
+		final byte[] mask = new byte[width*height];
+		for(int x = 1; x <= 4; x++) mask[width + x] = (byte) 255;
+		final HaloCorrection.IntQueue queue = new HaloCorrection.IntQueue(2);
+		queue.add(width + 1);
+		queue.add(width + 2);
+
+		final int removed = HaloCorrection.shrink(queue, mask, new byte[width*height], width, height, new byte[width*height]);
+
+		// x = 1 and x = 3 start their batches and are kept, x = 4 has no object pixel ahead
+		assertEquals(1, removed);
+		assertEquals(0, mask[width + 2]);
+		assertEquals((byte) 255, mask[width + 1]);
+		assertEquals((byte) 255, mask[width + 3]);
+		assertEquals((byte) 255, mask[width + 4]);
+	}
+
+	@Test
+	public void visitedArrayIsCleared() {
+		final Random random = new Random(2);
+		final int width = 40, height = 30;
+		final byte[] mask = randomBlobs(random, width, height);
+		final byte[] directions = new byte[width*height];
+		for(int i = 0; i < directions.length; i++) directions[i] = (byte) random.nextInt(8);
+
+		final byte[] expected = mask.clone();
+		final int expectedRemoved = HaloCorrection.apply(expected, directions, width, height);
+		final byte[] visited = new byte[width*height];
+		Arrays.fill(visited, (byte) 1);
+		final byte[] actual = mask.clone();
+		final int removed = HaloCorrection.apply(actual, directions, width, height, visited);
+
+		assertArrayEquals(expected, actual);
+		assertEquals(expectedRemoved, removed);
+	}
+
+	/**
+	 * The original loop, on positions and lists, as it was before the byte array implementation
+	 */
+	private static void original(int[] starts, byte[] mask, byte[] directions, int width, int height) {
+		final boolean[] consideredAsStartingPoint = new boolean[width*height];
+		List<int[]> pixelsToProcess = new ArrayList<int[]>();
+		for(int start : starts) pixelsToProcess.add(new int[] {start % width, start / width});
+
+		while(!pixelsToProcess.isEmpty()) {
+			final List<int[]> toAddToQueue = new ArrayList<int[]>();
+			final List<int[]> toBeRemoved = new ArrayList<int[]>();
+			for(int[] currentPosition : pixelsToProcess) {
+				boolean validPath = false;
+				final int[] currentDirectionCone = PROJECTION_CONES[directions[currentPosition[1]*width + currentPosition[0]]];
+				if(!consideredAsStartingPoint[currentPosition[1]*width + currentPosition[0]]) {
+					if(currentPosition[0] > 0 && currentPosition[1] > 0 && currentPosition[0] < width-1 && currentPosition[1] < height-1) {
+						consideredAsStartingPoint[currentPosition[1]*width + currentPosition[0]] = true;
+						for(int k = 0; k < 3; k++) {
+							final int[] directionOffset = DIRECTION_OFFSETS[currentDirectionCone[k]-1];
+							final int[] nextPosition = {currentPosition[0] + directionOffset[0], currentPosition[1] + directionOffset[1]};
+							if((mask[nextPosition[1]*width + nextPosition[0]] & 0xff) == 255) {
+								if(nextPosition[0] >= 1 && nextPosition[1] >= 1 && nextPosition[0] <= width && nextPosition[1] <= height) {
+									validPath = true;
+									toAddToQueue.add(nextPosition);
+								}
+							}
+						}
+					}
+				}
+				if(validPath) toBeRemoved.add(currentPosition);
+			}
+			for(int j = 1; j < toBeRemoved.size(); j++) {
+				mask[toBeRemoved.get(j)[1]*width + toBeRemoved.get(j)[0]] = 0;
+			}
+			pixelsToProcess = toAddToQueue;
+		}
+	}
+
+	/**
+	 * Random discs, so that objects have an inside and paths of several pixels
+	 */
+	static byte[] randomBlobs(Random random, int width, int height) {
+		final byte[] mask = new byte[width*height];
+		final int nBlobs = 1 + width*height/60;
+		for(int b = 0; b < nBlobs; b++) {
+			final int cx = random.nextInt(width), cy = random.nextInt(height), r = 1 + random.nextInt(6);
+			for(int y = Math.max(0, cy-r); y <= Math.min(height-1, cy+r); y++) {
+				for(int x = Math.max(0, cx-r); x <= Math.min(width-1, cx+r); x++) {
+					if((x-cx)*(x-cx) + (y-cy)*(y-cy) <= r*r) mask[y*width + x] = (byte) 255;
+				}
+			}
+		}
+		// Some noise, for isolated pixels and small holes
+		for(int i = 0; i < mask.length / 20; i++) mask[random.nextInt(mask.length)] ^= (byte) 255;
+		return mask;
+	}
+
+	/**
+	 * Object pixels with a background pixel among their 8 neighbours, in row order
+	 */
+	private static int[] boundaryPixels(byte[] mask, int width, int height) {
+		final List<Integer> pixels = new ArrayList<Integer>();
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				if(mask[y*width + x] == 0) continue;
+				boolean boundary = false;
+				for(int dy = -1; dy <= 1 && !boundary; dy++) {
+					for(int dx = -1; dx <= 1 && !boundary; dx++) {
+						final int nx = x+dx, ny = y+dy;
+						if(nx >= 0 && ny >= 0 && nx < width && ny < height && mask[ny*width + nx] == 0) boundary = true;
+					}
+				}
+				if(boundary) pixels.add(y*width + x);
+			}
+		}
+		final int[] array = new int[pixels.size()];
+		for(int k = 0; k < array.length; k++) array[k] = pixels.get(k);
+		return array;
+	}
+
+	private static int objectPixels(byte[] mask) {
+		int count = 0;
+		for(byte value : mask) if(value != 0) count++;
+		return count;
+	}
+}
@@ -0,0 +1,63 @@
+package phantast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks the order of the planes of a hyperstack and their indices in the input and output stacks.
+ */
+public class HyperstackPlanesTest {
+
+	@Test
+	public void framesChangeFastest() {
+		for(int nChannels = 1; nChannels <= 3; nChannels++) {
+			for(int nSlices = 1; nSlices <= 3; nSlices++) {
+				for(int nFrames = 1; nFrames <= 4; nFrames++) {
+					for(int channel = 0; channel <= nChannels; channel++) {
+						final HyperstackPlanes planes = new HyperstackPlanes(nChannels, nSlices, nFrames, channel);
+						final String message = nChannels+"x"+nSlices+"x"+nFrames+", channel "+channel;
+						assertEquals(message, (channel > 0 ? 1 : nChannels)*nSlices*nFrames, planes.size());
+
+						for(int plane = 1; plane < planes.size(); plane++) {
+							final boolean sameRun = planes.getChannel(plane) == planes.getChannel(plane-1) && planes.getSlice(plane) == planes.getSlice(plane-1);
+							if(planes.getFrame(plane) > 1) {
+								// Consecutive time points of the same channel and focal plane
+								assertTrue(message+", plane "+plane, sameRun);
+								assertEquals(message+", plane "+plane, planes.getFrame(plane-1)+1, planes.getFrame(plane));
+							} else {
+								assertTrue(message+", plane "+plane, !sameRun);
+								assertEquals(message+", plane "+plane, nFrames, planes.getFrame(plane-1));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void indicesFollowTheCztOrder() {
+		final int nChannels = 3, nSlices = 2, nFrames = 4;
+		for(int channel = 0; channel <= nChannels; channel++) {
+			final HyperstackPlanes planes = new HyperstackPlanes(nChannels, nSlices, nFrames, channel);
+			final Set<Integer> stackIndices = new HashSet<Integer>();
+			final Set<Integer> outputIndices = new HashSet<Integer>();
+			for(int plane = 0; plane < planes.size(); plane++) {
+				final int c = planes.getChannel(plane), z = planes.getSlice(plane), t = planes.getFrame(plane);
+				if(channel > 0) assertEquals(channel, c);
+				assertEquals((t-1)*nChannels*nSlices + (z-1)*nChannels + c, planes.getStackIndex(plane));
+				final int outputChannels = planes.getOutputChannels();
+				assertEquals((t-1)*outputChannels*nSlices + (z-1)*outputChannels + (channel > 0 ? 1 : c), planes.getOutputIndex(plane));
+				stackIndices.add(planes.getStackIndex(plane));
+				outputIndices.add(planes.getOutputIndex(plane));
+			}
+			assertEquals(planes.size(), stackIndices.size());
+			assertEquals(planes.size(), outputIndices.size());
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.plugin.filter.Convolver;
+import ij.process.FloatProcessor;
+
+/**
+ * Checks the single-pass direction image against eight separate convolutions by ImageJ's Convolver,
+ * with the kernels and the argmax of the original plugin.
+ */
+public class KirschDirectionTest {
+
+	/** The kernels of the original plugin, kept apart from KirschDirection.KERNELS on purpose */
+	private static final float[][] ORIGINAL_KERNELS = new float[][] {
+		{-3,-3,5,-3,0,5,-3,-3,5},
+		{-3,5,5,-3,0,5,-3,-3,-3},
+		{5,5,5,-3,0,-3,-3,-3,-3},
+		{5,5,-3,5,0,-3,-3,-3,-3},
+		{5,-3,-3,5,0,-3,5,-3,-3},
+		{-3,-3,-3,5,0,-3,5,5,-3},
+		{-3,-3,-3,-3,0,-3,5,5,5},
+		{-3,-3,-3,-3,0,5,-3,5,5}};
+
+	@Test
+	public void sameAsEightConvolutions() {
+		final Random random = new Random(3);
+		final int[][] sizes = {{1, 1}, {1, 5}, {5, 1}, {2, 3}, {3, 2}, {17, 9}, {64, 48}, {131, 77}};
+		for(int[] size : sizes) {
+			final int width = size[0], height = size[1];
+			final float[] pixels = new float[width*height];
+			for(int i = 0; i < pixels.length; i++) pixels[i] = (float) (random.nextGaussian() * 1000);
+			assertArrayEquals(width+"x"+height, convolutions(pixels, width, height), directions(pixels, width, height));
+		}
+	}
+
+	@Test
+	public void tiesGoToTheFirstKernel() {
+		final Random random = new Random(4);
+		final int width = 97, height = 41;
+		// Few grey levels, so that several kernels often give the same response
+		final float[] pixels = new float[width*height];
+		for(int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt(3);
+		assertArrayEquals(convolutions(pixels, width, height), directions(pixels, width, height));
+
+		// All responses are 0 on a flat image
+		assertArrayEquals(new byte[width*height], directions(new float[width*height], width, height));
+	}
+
+	@Test
+	public void bandsGiveTheSameImage() {
+		final Random random = new Random(5);
+		final int width = 70, height = 53;
+		final float[] pixels = new float[width*height];
+		for(int i = 0; i < pixels.length; i++) pixels[i] = random.nextFloat() * 255;
+		final byte[] banded = new byte[width*height];
+		KirschDirection.apply(pixels, width, height, banded, 4);
+		assertArrayEquals(directions(pixels, width, height), banded);
+	}
+
+	private static byte[] directions(float[] pixels, int width, int height) {
+		final byte[] directions = new byte[width*height];
+		KirschDirection.apply(pixels, width, height, directions);
+		return directions;
+	}
+
+	/**
+	 * One response image per kernel, convolved by ImageJ as the original plugin did, then the index of the first strongest response
+	 */
+	private static byte[] convolutions(float[] pixels, int width, int height) {
+		final Convolver convolver = new Convolver();
+		convolver.setNormalize(false);
+		final float[][] responses = new float[8][];
+		for(int k = 0; k < 8; k++) {
+			final FloatProcessor response = new FloatProcessor(width, height, pixels.clone());
+			convolver.convolve(response, ORIGINAL_KERNELS[k], 3, 3);
+			responses[k] = (float[]) response.getPixels();
+		}
+
+		final byte[] directions = new byte[width*height];
+		for(int p = 0; p < directions.length; p++) {
+			float max = responses[0][p];
+			int kernelId = 0;
+			for(int k = 1; k < 8; k++) {
+				if(responses[k][p] > max) {
+					max = responses[k][p];
+					kernelId = k;
+				}
+			}
+			directions[p] = (byte) kernelId;
+		}
+		return directions;
+	}
+}
@@ -0,0 +1,83 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.algorithm.gauss.Gauss;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Checks the fused local contrast filter against the imglib2 pipeline of the original plugin:
+ * Gauss.inFloat of the image and of its square, then the guarded subtraction, square root and division.
+ * Sizes include images smaller than the kernel radius and every kind of tail of the column strips.
+ */
+@SuppressWarnings("deprecation")
+public class LocalContrastFilterTest {
+
+	/** Both sides sum in float, in a different order */
+	private static final double TOLERANCE = 1e-4;
+
+	@Test
+	public void sameAsOriginalPipeline() {
+		final Random random = new Random(9);
+		final int[][] sizes = {{1, 1}, {1, 6}, {6, 1}, {2, 3}, {5, 4}, {9, 20}, {63, 5}, {64, 10}, {65, 7}, {130, 9}, {127, 33}};
+		for(double sigma : new double[] {0.8, 1.2, 2.5, 4.0}) {
+			for(int[] size : sizes) {
+				final int width = size[0], height = size[1];
+				for(int maxValue : new int[] {255, 65535}) {
+					final float[] pixels = new float[width*height];
+					for(int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt(maxValue + 1);
+
+					final float[] expected = original(pixels, width, height, sigma);
+					final float[] actual = new LocalContrastFilter().apply(pixels, width, height, sigma);
+					final String message = width+"x"+height+", sigma "+sigma+", max "+maxValue;
+					for(int i = 0; i < expected.length; i++) {
+						assertEquals(message+", pixel "+i, expected[i], actual[i], TOLERANCE * Math.max(1, Math.abs(expected[i])));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void emptyImageGivesZero() {
+		// G(I) is not positive, the guards of the original give 0 rather than NaN
+		final int width = 70, height = 12;
+		assertArrayEquals(new float[width*height], new LocalContrastFilter().apply(new float[width*height], width, height, 2.0), 0f);
+	}
+
+	/**
+	 * The local contrast as computed by getLocalContrastImage of the original plugin
+	 */
+	private static float[] original(float[] pixels, int width, int height, double sigma) {
+		final float[] squares = new float[pixels.length];
+		for(int i = 0; i < pixels.length; i++) squares[i] = pixels[i] * pixels[i];
+		final float[] squaresConvolved = gauss(squares, width, height, sigma);
+		final float[] convolved = gauss(pixels, width, height, sigma);
+
+		final float[] localContrast = new float[pixels.length];
+		for(int i = 0; i < pixels.length; i++) {
+			final float convolvedSquared = convolved[i] * convolved[i];
+			final float variance = convolvedSquared > 0 ? squaresConvolved[i] - convolvedSquared : 0;
+			final float deviation = (float) Math.sqrt(variance);
+			localContrast[i] = convolved[i] > 0 ? deviation / convolved[i] : 0;
+		}
+		return localContrast;
+	}
+
+	private static float[] gauss(float[] pixels, int width, int height, double sigma) {
+		final Img<FloatType> img = ArrayImgs.floats(pixels.clone(), width, height);
+		final Img<FloatType> convolved = Gauss.inFloat(new double[] {sigma, sigma}, img);
+		final float[] result = new float[pixels.length];
+		final Cursor<FloatType> cursor = convolved.cursor();
+		for(int i = 0; i < result.length; i++) result[i] = cursor.next().get();
+		return result;
+	}
+}
@@ -0,0 +1,59 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Checks that the tiled path of the engine gives the same images as the untiled one with the exact
+ * Gaussian, for tiles smaller than the Gaussian radius, tiles that do not divide the image, and strip tails.
+ */
+public class PhantastEngineTest {
+
+	@Test
+	public void tilesGiveTheSameImages() {
+		final Random random = new Random(10);
+		final int[][] sizes = {{1, 1}, {5, 3}, {70, 9}, {131, 77}};
+		for(int[] size : sizes) {
+			final int width = size[0], height = size[1];
+			for(ImageProcessor ip : new ImageProcessor[] {randomBytes(random, width, height), randomFloats(random, width, height)}) {
+				for(double sigma : new double[] {1.2, 4.0}) {
+					final PhantastParameters parameters = new PhantastParameters().setSigma(sigma).setEpsilon(0.05);
+					final PhantastEngine untiled = new PhantastEngine(parameters);
+					final float[] localContrast = untiled.computeLocalContrast(ip);
+					final byte[] directions = untiled.computeDirections(ip);
+					final PhantastResult result = untiled.segment(ip);
+
+					for(int tileSize : new int[] {1, 7, 16, 64, 100}) {
+						final PhantastEngine tiled = new PhantastEngine(parameters.copy().setTileSize(tileSize));
+						final String message = width+"x"+height+", "+ip.getBitDepth()+"-bit, sigma "+sigma+", tiles "+tileSize;
+						assertArrayEquals(message, localContrast, tiled.computeLocalContrast(ip), 0f);
+						assertArrayEquals(message, directions, tiled.computeDirections(ip));
+						final PhantastResult tiledResult = tiled.segment(ip);
+						assertArrayEquals(message, result.getMask(), tiledResult.getMask());
+						assertEquals(message, result.getConfluency(), tiledResult.getConfluency(), 0);
+					}
+				}
+			}
+		}
+	}
+
+	private static ImageProcessor randomBytes(Random random, int width, int height) {
+		final byte[] pixels = new byte[width*height];
+		random.nextBytes(pixels);
+		return new ByteProcessor(width, height, pixels);
+	}
+
+	private static ImageProcessor randomFloats(Random random, int width, int height) {
+		final float[] pixels = new float[width*height];
+		for(int i = 0; i < pixels.length; i++) pixels[i] = 1000 + (float) random.nextGaussian() * 200;
+		return new FloatProcessor(width, height, pixels);
+	}
+}
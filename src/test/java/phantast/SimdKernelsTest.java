@@ -0,0 +1,164 @@
+package phantast;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the SIMD kernels with the scalar ones, bit for bit, over lengths covering several
+ * vectors and every tail length, and over special values. Skipped when the SIMD kernels cannot
+ * be loaded, i.e. before Java 17 or without the jdk.incubator.vector module.
+ */
+public class SimdKernelsTest {
+
+	/** Longest vector of the Vector API is 512 bits, 64 bytes */
+	private static final int MAX_LANES = 64;
+
+	private static final float[] SPECIAL = {0f, -0f, 1f, -1f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+			Float.MIN_VALUE, -Float.MIN_VALUE, Float.MAX_VALUE, 1e-30f, 0.03f};
+
+	private final SimdKernels scalar = SimdKernels.scalar();
+	private SimdKernels vector;
+	private Random random;
+
+	@Before
+	public void loadVectorKernels() {
+		vector = SimdKernels.vector();
+		Assume.assumeTrue("SIMD kernels not available on this JVM", vector != null);
+		random = new Random(8);
+	}
+
+	@Test
+	public void convolveLine() {
+		for(double sigma : new double[] {0.5, 1.2, 2.0, 4.5}) {
+			final float[] kernel = LocalContrastFilter.gaussianKernel(sigma);
+			for(int width = 1; width <= 3*MAX_LANES + 1; width++) {
+				final float[] line = values(width + kernel.length - 1);
+				final float[] squares = values(line.length);
+				final float[] expected = new float[width + 3], expectedSquares = new float[width + 3];
+				final float[] actual = new float[width + 3], actualSquares = new float[width + 3];
+				scalar.convolveLine(line, squares, kernel, width, expected, expectedSquares, 2);
+				vector.convolveLine(line, squares, kernel, width, actual, actualSquares, 2);
+				assertSameBits("sigma "+sigma+", width "+width, expected, actual);
+				assertSameBits("sigma "+sigma+", width "+width+", squares", expectedSquares, actualSquares);
+			}
+		}
+	}
+
+	@Test
+	public void convolveStripRow() {
+		final float[] kernel = LocalContrastFilter.gaussianKernel(1.5);
+		for(int sw = 1; sw <= 2*MAX_LANES + 1; sw++) {
+			for(int start : new int[] {0, 3}) {
+				final float[] strip = values(start + sw*kernel.length);
+				// Squares larger than the squared sums, and some smaller ones for the variance clamp
+				final float[] squares = new float[strip.length];
+				for(int i = 0; i < squares.length; i++) squares[i] = random.nextInt(4) == 0 ? strip[i] : strip[i]*strip[i] + random.nextFloat();
+				final float[] expected = new float[sw + 1], actual = new float[sw + 1];
+				scalar.convolveStripRow(strip, squares, kernel, start, sw, expected, 1);
+				vector.convolveStripRow(strip, squares, kernel, start, sw, actual, 1);
+				assertSameBits("width "+sw+", start "+start, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void threshold() {
+		// NaN, values between two floats, exact floats, and special values
+		final double[] thresholds = {Double.NaN, 0, -0.0, 0.03, 0.1, 1.0/3, Math.nextUp((double) 0.03f), Math.nextDown((double) 0.03f),
+				-5, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE, 1e-300};
+		for(double threshold : thresholds) {
+			for(int n = 0; n <= 3*MAX_LANES + 1; n++) {
+				final float[] pixels = values(n + 5);
+				for(int i = 0; i < pixels.length; i += 7) pixels[i] = (float) threshold;
+				final byte[] expected = new byte[n + 4], actual = new byte[n + 4];
+				scalar.threshold(pixels, 5, threshold, expected, 4, n);
+				vector.threshold(pixels, 5, threshold, actual, 4, n);
+				assertArrayEquals("threshold "+threshold+", n "+n, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void count() {
+		for(int n = 0; n <= 4*MAX_LANES + 1; n++) {
+			final byte[] values = new byte[n];
+			for(int i = 0; i < n; i++) values[i] = (byte) (random.nextBoolean() ? 255 : random.nextInt(3));
+			for(byte value : new byte[] {(byte) 255, 0, 1, 7}) {
+				assertEquals("n "+n+", value "+value, scalar.count(values, value), vector.count(values, value));
+			}
+		}
+	}
+
+	@Test
+	public void kirschDirections() {
+		for(int width = 1; width <= 2*MAX_LANES + 3; width++) {
+			for(int levels : new int[] {0, 2, 3}) {
+				// Few grey levels for ties between kernels, 0 for random floats
+				final int height = 4;
+				final float[] pixels = new float[width*height];
+				for(int i = 0; i < pixels.length; i++) pixels[i] = levels > 0 ? random.nextInt(levels) : (float) random.nextGaussian() * 100;
+				final byte[] expected = new byte[pixels.length], actual = new byte[pixels.length];
+				KirschDirection.computeRows(pixels, width, height, expected, 0, height, scalar);
+				KirschDirection.computeRows(pixels, width, height, actual, 0, height, vector);
+				assertArrayEquals("width "+width+", levels "+levels, expected, actual);
+			}
+		}
+	}
+
+	@Test
+	public void elementWise() {
+		for(int n = 0; n <= 3*MAX_LANES + 1; n++) {
+			final float[] a = values(n), b = values(n);
+			final float[] expected = new float[n], actual = new float[n];
+			scalar.multiply(a, b, expected);
+			vector.multiply(a, b, actual);
+			assertSameBits("multiply, n "+n, expected, actual);
+			scalar.divide(a, b, expected);
+			vector.divide(a, b, actual);
+			assertSameBits("divide, n "+n, expected, actual);
+			scalar.subtract(a, b, expected);
+			vector.subtract(a, b, actual);
+			assertSameBits("subtract, n "+n, expected, actual);
+			scalar.sqrt(a, expected);
+			vector.sqrt(a, actual);
+			assertSameBits("sqrt, n "+n, expected, actual);
+		}
+	}
+
+	@Test
+	public void sanityCheckPasses() {
+		assertEquals(true, vector.agreesWith(scalar));
+	}
+
+	/**
+	 * Random values of several magnitudes and signs, with some special values
+	 */
+	private float[] values(int n) {
+		final float[] values = new float[n];
+		for(int i = 0; i < n; i++) {
+			switch(random.nextInt(8)) {
+				case 0:  values[i] = SPECIAL[random.nextInt(SPECIAL.length)]; break;
+				case 1:  values[i] = random.nextInt(5); break;
+				case 2:  values[i] = (float) (random.nextGaussian() * 1e-3); break;
+				default: values[i] = (float) (random.nextGaussian() * 100);
+			}
+		}
+		return values;
+	}
+
+	private static void assertSameBits(String message, float[] expected, float[] actual) {
+		assertEquals(message, expected.length, actual.length);
+		for(int i = 0; i < expected.length; i++) {
+			if(Float.floatToIntBits(expected[i]) != Float.floatToIntBits(actual[i])) {
+				fail(message+": "+expected[i]+" expected at "+i+" but was "+actual[i]);
+			}
+		}
+	}
+}